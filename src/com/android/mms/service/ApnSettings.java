@@ -24,12 +24,14 @@ import android.net.Uri;
 import android.provider.Telephony;
 import android.telephony.data.ApnSetting;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.android.mms.service.exception.ApnException;
 import com.android.net.module.util.Inet4AddressUtils;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.function.Supplier;
 
 /**
  * APN settings used for MMS transactions
@@ -42,9 +44,12 @@ public class ApnSettings {
     private final String mProxyAddress;
     // MMSC proxy port
     private final int mProxyPort;
+    // Builds the debug text for this APN, only when logged verbosely or dumped
+    private final Supplier<String> mDebugTextSupplier;
     // Debug text for this APN: a concatenation of interesting columns of this APN
-    private final String mDebugText;
+    private String mDebugText;
 
+    // The columns used for MMS, and the names identifying the APN in the debug text
     private static final String[] APN_PROJECTION = {
             Telephony.Carriers.TYPE,
             Telephony.Carriers.MMSC,
@@ -52,35 +57,22 @@ public class ApnSettings {
             Telephony.Carriers.MMSPORT,
             Telephony.Carriers.NAME,
             Telephony.Carriers.APN,
-            Telephony.Carriers.BEARER_BITMASK,
-            Telephony.Carriers.PROTOCOL,
-            Telephony.Carriers.ROAMING_PROTOCOL,
-            Telephony.Carriers.AUTH_TYPE,
-            Telephony.Carriers.MVNO_TYPE,
-            Telephony.Carriers.MVNO_MATCH_DATA,
-            Telephony.Carriers.PROXY,
-            Telephony.Carriers.PORT,
-            Telephony.Carriers.SERVER,
-            Telephony.Carriers.USER,
-            Telephony.Carriers.PASSWORD,
     };
     private static final int COLUMN_TYPE = 0;
     private static final int COLUMN_MMSC = 1;
     private static final int COLUMN_MMSPROXY = 2;
     private static final int COLUMN_MMSPORT = 3;
-    private static final int COLUMN_NAME = 4;
-    private static final int COLUMN_APN = 5;
-    private static final int COLUMN_BEARER = 6;
-    private static final int COLUMN_PROTOCOL = 7;
-    private static final int COLUMN_ROAMING_PROTOCOL = 8;
-    private static final int COLUMN_AUTH_TYPE = 9;
-    private static final int COLUMN_MVNO_TYPE = 10;
-    private static final int COLUMN_MVNO_MATCH_DATA = 11;
-    private static final int COLUMN_PROXY = 12;
-    private static final int COLUMN_PORT = 13;
-    private static final int COLUMN_SERVER = 14;
-    private static final int COLUMN_USER = 15;
-    private static final int COLUMN_PASSWORD = 16;
+
+    // Only the APNs that may be of MMS type, i.e. of unspecified type, or whose types contain
+    // the MMS or all types. The types are still matched exactly on the selected rows.
+    private static final String MMS_TYPE_SELECTION = "(" + Telephony.Carriers.TYPE + " IS NULL"
+            + " OR " + Telephony.Carriers.TYPE + "=''"
+            + " OR " + Telephony.Carriers.TYPE + " LIKE ?"
+            + " OR " + Telephony.Carriers.TYPE + " LIKE ?)";
+    private static final String[] MMS_TYPE_SELECTION_ARGS = {
+            "%" + ApnSetting.TYPE_MMS_STRING + "%",
+            "%" + ApnSetting.TYPE_ALL_STRING + "%",
+    };
 
 
     /**
@@ -91,16 +83,28 @@ public class ApnSettings {
      */
     public static ApnSettings load(Context context, String apnName, int subId, String requestId)
             throws ApnException {
+        apnName = apnName != null ? apnName.trim() : null;
+        final MmsApnCache cache = MmsApnCache.getInstance();
+        final ApnSettings cached = cache.get(subId, apnName);
+        if (cached == MmsApnCache.NO_APN) {
+            LogUtil.i(requestId, "No APN using name " + apnName + " (cached)");
+            throw new ApnException("Can not find valid APN");
+        } else if (cached != null) {
+            LogUtil.i(requestId, "Loaded APN using name " + apnName + " (cached)");
+            return cached;
+        }
+        final long generation = cache.getGeneration();
+
         LogUtil.i(requestId, "Loading APN using name " + apnName);
         // TODO: CURRENT semantics is currently broken in telephony. Revive this when it is fixed.
         //String selection = Telephony.Carriers.CURRENT + " IS NOT NULL";
-        String selection = null;
-        String[] selectionArgs = null;
-        apnName = apnName != null ? apnName.trim() : null;
+        String selection = MMS_TYPE_SELECTION;
+        String[] selectionArgs = MMS_TYPE_SELECTION_ARGS;
         if (!TextUtils.isEmpty(apnName)) {
             //selection += " AND " + Telephony.Carriers.APN + "=?";
-            selection = Telephony.Carriers.APN + "=?";
-            selectionArgs = new String[]{apnName};
+            selection = Telephony.Carriers.APN + "=? AND " + MMS_TYPE_SELECTION;
+            selectionArgs = new String[]{apnName,
+                    MMS_TYPE_SELECTION_ARGS[0], MMS_TYPE_SELECTION_ARGS[1]};
         }
 
         try (Cursor cursor = context.getContentResolver().query(
@@ -112,8 +116,13 @@ public class ApnSettings {
 
             ApnSettings settings = getApnSettingsFromCursor(cursor, requestId);
             if (settings != null) {
+                cache.put(subId, apnName, settings, generation);
                 return settings;
             }
+            if (cursor != null) {
+                // The provider answered, the APN database has no match
+                cache.put(subId, apnName, MmsApnCache.NO_APN, generation);
+            }
         }
         throw new ApnException("Can not find valid APN");
     }
@@ -153,8 +162,13 @@ public class ApnSettings {
                         }
                     }
                 }
-                return new ApnSettings(
-                        mmscUrl, proxyAddress, proxyPort, getDebugText(cursor));
+                final String[] columnNames = cursor.getColumnNames();
+                final String[] values = new String[columnNames.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = cursor.getString(i);
+                }
+                return new ApnSettings(mmscUrl, proxyAddress, proxyPort,
+                        () -> getDebugText(columnNames, values));
             }
         }
         return null;
@@ -182,15 +196,15 @@ public class ApnSettings {
             if (apn.getMmsProxyPort() != -1 /*UNSPECIFIED_INT*/) proxyPort = apn.getMmsProxyPort();
         }
 
-        return new ApnSettings(mmscUrl, proxy, proxyPort, apn.toString());
+        return new ApnSettings(mmscUrl, proxy, proxyPort, apn::toString);
     }
 
-    private static String getDebugText(Cursor cursor) {
+    private static String getDebugText(String[] columnNames, String[] values) {
         final StringBuilder sb = new StringBuilder();
         sb.append("APN [");
-        for (int i = 0; i < cursor.getColumnCount(); i++) {
-            final String name = cursor.getColumnName(i);
-            final String value = cursor.getString(i);
+        for (int i = 0; i < columnNames.length; i++) {
+            final String name = columnNames[i];
+            final String value = values[i];
             if (TextUtils.isEmpty(value)) {
                 continue;
             }
@@ -208,10 +222,15 @@ public class ApnSettings {
     }
 
     public ApnSettings(String mmscUrl, String proxyAddr, int proxyPort, String debugText) {
+        this(mmscUrl, proxyAddr, proxyPort, () -> debugText);
+    }
+
+    private ApnSettings(String mmscUrl, String proxyAddr, int proxyPort,
+            Supplier<String> debugTextSupplier) {
         mServiceCenter = mmscUrl;
         mProxyAddress = proxyAddr;
         mProxyPort = proxyPort;
-        mDebugText = debugText;
+        mDebugTextSupplier = debugTextSupplier;
     }
 
     public String getMmscUrl() {
@@ -230,6 +249,16 @@ public class ApnSettings {
         return !TextUtils.isEmpty(mProxyAddress);
     }
 
+    /**
+     * @return The debug text of the APN, built on first use
+     */
+    public synchronized String getDebugText() {
+        if (mDebugText == null) {
+            mDebugText = mDebugTextSupplier.get();
+        }
+        return mDebugText;
+    }
+
     private static boolean isValidApnType(String types, String requestType) {
         // If APN type is unspecified, assume TYPE_ALL_STRING.
         if (TextUtils.isEmpty(types)) {
@@ -246,6 +275,7 @@ public class ApnSettings {
 
     @Override
     public String toString() {
-        return mServiceCenter + " " + mProxyAddress + " " + mProxyPort + " " + mDebugText;
+        return mServiceCenter + " " + mProxyAddress + " " + mProxyPort
+                + (LogUtil.isLoggable(Log.VERBOSE) ? " " + getDebugText() : "");
     }
 }
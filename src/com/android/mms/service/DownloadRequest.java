@@ -59,6 +59,9 @@ public class DownloadRequest extends MmsRequest {
     private final String mLocationUrl;
     private final PendingIntent mDownloadedIntent;
     private final Uri mContentUri;
+    // The body received by interrupted attempts, to resume the download on retry
+    private final MmsHttpClient.PartialDownload mPartialDownload =
+            new MmsHttpClient.PartialDownload();
 
     public DownloadRequest(RequestManager manager, int subId, String locationUrl,
             Uri contentUri, PendingIntent downloadedIntent, int callingUser, String creator,
@@ -75,23 +78,30 @@ public class DownloadRequest extends MmsRequest {
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn)
             throws MmsHttpException {
         final String requestId = getRequestId();
-        final MmsHttpClient mmsHttpClient = netMgr.getOrCreateHttpClient();
-        if (mmsHttpClient == null) {
+        final MmsTransport transport = netMgr.getOrCreateTransport(mMmsConfig,
+                mUseTerrestrialNetwork);
+        if (transport == null) {
             LogUtil.e(requestId, "MMS network is not ready! "
                     + MmsService.formatCrossStackMessageId(mMessageId));
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready. "
                     + MmsService.formatCrossStackMessageId(mMessageId));
         }
-        return mmsHttpClient.execute(
-                mLocationUrl,
-                null/*pud*/,
-                MmsHttpClient.METHOD_GET,
-                apn.isProxySet(),
-                apn.getProxyAddress(),
-                apn.getProxyPort(),
-                mMmsConfig,
-                mSubId,
-                requestId);
+        try {
+            return transport.execute(
+                    mLocationUrl,
+                    null/*pud*/,
+                    MmsHttpClient.METHOD_GET,
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId,
+                    mPartialDownload);
+        } finally {
+            // Also when failing, so that the transport doesn't keep it
+            mNetworkTimings.addIpv4WaitMillis(transport.takeIpv4WaitMillis(requestId));
+        }
     }
 
     @Override
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.net.Network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.SocketFactory;
+
+/**
+ * HTTP/1.1 POST with "Expect: 100-continue" over a socket of the MMS network, so that the PDU is
+ * only uploaded after the MMSC has accepted the request headers. HttpURLConnection always sends
+ * the body right after the headers, so it can't be used for this.
+ */
+public class ExpectContinuePost {
+    private static final String CRLF = "\r\n";
+    private static final int HTTP_CONTINUE = 100;
+
+    private final Network mNetwork;
+    private final SocketFactory mSocketFactory;
+    private final URL mUrl;
+    private final InetSocketAddress mAddress;
+    private final boolean mViaProxy;
+    // The socket of the ongoing exchange, to close when cancelled
+    private volatile Socket mSocket;
+
+    /**
+     * Constructor
+     *
+     * @param network       The network to resolve the host on
+     * @param socketFactory The factory of the sockets of the network
+     * @param url           The http URL to post to
+     * @param proxy         The HTTP proxy to go through, or {@link Proxy#NO_PROXY}
+     */
+    public ExpectContinuePost(Network network, SocketFactory socketFactory, URL url,
+            Proxy proxy) {
+        mNetwork = network;
+        mSocketFactory = socketFactory;
+        mUrl = url;
+        mViaProxy = proxy != null && proxy.type() == Proxy.Type.HTTP;
+        mAddress = mViaProxy ? (InetSocketAddress) proxy.address()
+                : InetSocketAddress.createUnresolved(url.getHost(),
+                        url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    /**
+     * Send the request headers, wait for the server to accept them and then send the body.
+     *
+     * @param requestHeaders   The request headers, as set on an HttpURLConnection
+     * @param pdu              The body to send
+     * @param connectTimeoutMs The connect timeout
+     * @param readTimeoutMs    The read timeout
+     * @param continueTimeoutMs How long to wait for "100 Continue" before sending the body anyway,
+     *                         for servers that ignore the expectation
+     * @param watchdog         The watchdog of the transfer, checking the throughput of the bodies
+     * @return The final response
+     * @throws IOException for any network or protocol failure
+     */
+    public HttpResponseParser.Response execute(Map<String, List<String>> requestHeaders,
+            byte[] pdu, int connectTimeoutMs, int readTimeoutMs, int continueTimeoutMs,
+            MmsTransferWatchdog watchdog) throws IOException {
+        try (Socket socket = mSocketFactory.createSocket()) {
+            mSocket = socket;
+            final InetSocketAddress address = mAddress.isUnresolved()
+                    ? new InetSocketAddress(mNetwork.getByName(mAddress.getHostString()),
+                            mAddress.getPort())
+                    : mAddress;
+            socket.connect(address, connectTimeoutMs);
+            final OutputStream out =
+                    new BufferedOutputStream(watchdog.monitor(socket.getOutputStream()));
+            final BufferedInputStream in =
+                    new BufferedInputStream(watchdog.monitor(socket.getInputStream()));
+            out.write(buildRequestHead(requestHeaders, pdu.length)
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            // Either an interim 100, a final rejection, or nothing for servers not supporting it
+            socket.setSoTimeout(continueTimeoutMs);
+            boolean hasResponse;
+            in.mark(1);
+            try {
+                hasResponse = in.read() != -1;
+                in.reset();
+            } catch (SocketTimeoutException e) {
+                hasResponse = false;
+            }
+            socket.setSoTimeout(readTimeoutMs);
+            if (hasResponse) {
+                final HttpResponseParser.Response response =
+                        HttpResponseParser.readResponse(in, watchdog);
+                if (response.getStatusCode() != HTTP_CONTINUE) {
+                    // Rejected on the headers alone
+                    return response;
+                }
+            }
+            watchdog.startProgress();
+            out.write(pdu);
+            out.flush();
+            // The MMSC may take a while to process the PDU, which is not a stall.
+            watchdog.stopProgress();
+            HttpResponseParser.Response response;
+            do {
+                response = HttpResponseParser.readResponse(in, watchdog);
+            } while (response.getStatusCode() == HTTP_CONTINUE);
+            return response;
+        } finally {
+            mSocket = null;
+        }
+    }
+
+    /**
+     * Abort the ongoing exchange from another thread, making its blocked I/O fail.
+     */
+    public void cancel() {
+        final Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private String buildRequestHead(Map<String, List<String>> requestHeaders, int contentLength) {
+        final StringBuilder sb = new StringBuilder();
+        // Proxies need the absolute URL, servers the path
+        final String target = mViaProxy ? mUrl.toString() : mUrl.getFile();
+        sb.append("POST ").append(target.isEmpty() ? "/" : target).append(" HTTP/1.1")
+                .append(CRLF);
+        boolean hasHost = false;
+        for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+            final String name = entry.getKey();
+            if (name == null || isManagedHeader(name)) {
+                continue;
+            }
+            hasHost |= "Host".equalsIgnoreCase(name);
+            for (String value : entry.getValue()) {
+                sb.append(name).append(": ").append(value).append(CRLF);
+            }
+        }
+        if (!hasHost) {
+            sb.append("Host: ").append(mUrl.getAuthority()).append(CRLF);
+        }
+        sb.append("Content-Length: ").append(contentLength).append(CRLF);
+        sb.append("Expect: 100-continue").append(CRLF);
+        // The socket is not reused
+        sb.append("Connection: close").append(CRLF);
+        sb.append(CRLF);
+        return sb.toString();
+    }
+
+    private static boolean isManagedHeader(String name) {
+        return "Content-Length".equalsIgnoreCase(name)
+                || "Expect".equalsIgnoreCase(name)
+                || "Connection".equalsIgnoreCase(name)
+                || "Transfer-Encoding".equalsIgnoreCase(name);
+    }
+}
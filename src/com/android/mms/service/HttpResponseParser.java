@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.util.ArrayMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parser of the HTTP/1.1 responses read from a socket of the MMS network, for the requests that
+ * don't go through HttpURLConnection.
+ */
+public class HttpResponseParser {
+    // Longest status or header line accepted from the server
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * A response of the server.
+     */
+    public static class Response {
+        private final int mStatusCode;
+        private final String mMessage;
+        private final Map<String, List<String>> mHeaders;
+        private final byte[] mBody;
+
+        Response(int statusCode, String message, Map<String, List<String>> headers, byte[] body) {
+            mStatusCode = statusCode;
+            mMessage = message;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * @return The response headers, with lower case names
+         */
+        public Map<String, List<String>> getHeaders() {
+            return mHeaders;
+        }
+
+        /**
+         * @param name The lower case name of the header
+         * @return The last value of the header, or null if absent
+         */
+        public String getHeader(String name) {
+            final List<String> values = mHeaders.get(name);
+            return values == null || values.isEmpty() ? null : values.get(values.size() - 1);
+        }
+
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return Whether a body follows the headers of the response
+         */
+        public boolean hasBody() {
+            return mStatusCode >= 200 && mStatusCode != HttpURLConnection.HTTP_NO_CONTENT
+                    && mStatusCode != HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * @return The length of the body, or -1 if it is chunked or delimited by the end of the
+         *         connection
+         * @throws IOException if the Content-Length header is invalid
+         */
+        public long getContentLength() throws IOException {
+            if (isChunked()) {
+                return -1;
+            }
+            final String contentLength = getHeader("content-length");
+            if (contentLength == null) {
+                return -1;
+            }
+            final long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            if (length < 0) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            return length;
+        }
+
+        /**
+         * @param in The stream of the connection, right after the headers
+         * @return The stream of the body, decoded if chunked. Only ends with the connection if
+         *         the body has a Content-Length.
+         */
+        public InputStream getBodyStream(InputStream in) {
+            return isChunked() ? new ChunkedInputStream(in) : in;
+        }
+
+        private boolean isChunked() {
+            final String transferEncoding = getHeader("transfer-encoding");
+            return transferEncoding != null
+                    && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked");
+        }
+    }
+
+    /**
+     * Read a response, status line, headers and body.
+     *
+     * @param in       The stream of the connection
+     * @param watchdog The watchdog checking the throughput of the body, or null
+     * @return The response
+     * @throws IOException for any network or protocol failure
+     */
+    public static Response readResponse(InputStream in, MmsTransferWatchdog watchdog)
+            throws IOException {
+        final Response head = readHead(in);
+        if (!head.hasBody()) {
+            return head;
+        }
+        if (watchdog != null) {
+            watchdog.startProgress();
+        }
+        try {
+            final long length = head.getContentLength();
+            final InputStream body = head.getBodyStream(in);
+            return new Response(head.getStatusCode(), head.getMessage(), head.getHeaders(),
+                    length >= 0 ? MmsHttpClient.readBody(body, length)
+                            : MmsHttpClient.readUntilEof(body));
+        } finally {
+            if (watchdog != null) {
+                watchdog.stopProgress();
+            }
+        }
+    }
+
+    /**
+     * Read the status line and the headers of a response, leaving its body in the stream.
+     *
+     * @param in The stream of the connection
+     * @return The response, with an empty body
+     * @throws IOException for any network or protocol failure
+     */
+    public static Response readHead(InputStream in) throws IOException {
+        final String statusLine = readLine(in);
+        // HTTP/1.1 200 OK
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        final int statusCode;
+        try {
+            statusCode = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        final String message = parts.length > 2 ? parts[2] : "";
+        final Map<String, List<String>> headers = new ArrayMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Invalid header line: " + line);
+            }
+            final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                headers.put(name, values);
+            }
+            values.add(line.substring(colon + 1).trim());
+        }
+        return new Response(statusCode, message, Collections.unmodifiableMap(headers),
+                new byte[0]);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new IOException("Unexpected end of stream");
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            sb.append((char) c);
+        }
+        final int length = sb.length();
+        if (length > 0 && sb.charAt(length - 1) == '\r') {
+            sb.setLength(length - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes a body sent with "Transfer-Encoding: chunked".
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream mIn;
+        private int mChunkRemaining;
+        private boolean mEof;
+
+        ChunkedInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEof) {
+                return -1;
+            }
+            if (mChunkRemaining == 0) {
+                // chunk-size [; chunk-ext] CRLF
+                String sizeLine = readLine(mIn);
+                final int semicolon = sizeLine.indexOf(';');
+                if (semicolon >= 0) {
+                    sizeLine = sizeLine.substring(0, semicolon);
+                }
+                try {
+                    mChunkRemaining = Integer.parseInt(sizeLine.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (mChunkRemaining == 0) {
+                    // Skip the trailers
+                    while (!readLine(mIn).isEmpty()) {
+                        // Ignore
+                    }
+                    mEof = true;
+                    return -1;
+                }
+            }
+            final int count = mIn.read(b, off, Math.min(len, mChunkRemaining));
+            if (count == -1) {
+                throw new IOException("Unexpected end of chunked body");
+            }
+            mChunkRemaining -= count;
+            if (mChunkRemaining == 0) {
+                // The CRLF after the chunk data
+                readLine(mIn);
+            }
+            return count;
+        }
+    }
+}
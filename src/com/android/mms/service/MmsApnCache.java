@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.provider.Telephony;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the MMS APN settings loaded from the APN database for each subscription and
+ * APN name, so that the retries and the following requests don't query the provider again. The
+ * settings are dropped when an APN changes, or when a SIM or its carrier config changes.
+ */
+public class MmsApnCache {
+    private static volatile MmsApnCache sInstance = new MmsApnCache();
+
+    public static MmsApnCache getInstance() {
+        return sInstance;
+    }
+
+    /** Cached when no valid MMS APN matches, so that the lookup is not repeated either. */
+    public static final ApnSettings NO_APN = new ApnSettings(null, null, 0, "no APN");
+
+    // Maximum number of APN settings kept, there are only a few per subscription
+    @VisibleForTesting
+    public static final int MAX_ENTRIES = 16;
+
+    // The APN settings, keyed by subId and APN name, in least recently used order
+    @GuardedBy("this")
+    private final LinkedHashMap<String, ApnSettings> mApns =
+            new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true /*accessOrder*/);
+    // Incremented on every invalidation, so that a load racing with it is not cached
+    @GuardedBy("this")
+    private long mGeneration;
+
+    /** This receiver drops the APN settings of the SIMs that change. */
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int subId = intent.getIntExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            LogUtil.i("MmsApnCache receives " + intent.getAction() + " for " + subId);
+            if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(intent.getAction())
+                    && SubscriptionManager.isValidSubscriptionId(subId)) {
+                invalidate(subId);
+            } else {
+                invalidateAll();
+            }
+        }
+    };
+
+    /** This observer drops all the APN settings whenever an APN changes. */
+    private final ContentObserver mApnObserver = new ContentObserver(null /*handler*/) {
+        @Override
+        public void onChange(boolean selfChange) {
+            LogUtil.i("MmsApnCache: APN changed");
+            invalidateAll();
+        }
+    };
+
+    @VisibleForTesting
+    public MmsApnCache() {
+    }
+
+    /**
+     * Start watching for APN, SIM and carrier config changes.
+     *
+     * @param context The Context object
+     */
+    public void init(Context context) {
+        final IntentFilter filter =
+                new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        context.registerReceiver(mReceiver, filter);
+        context.getContentResolver().registerContentObserver(
+                Telephony.Carriers.CONTENT_URI, true /*notifyForDescendants*/, mApnObserver);
+    }
+
+    /**
+     * Get the APN settings loaded before.
+     *
+     * @param subId   The subscription of the APN
+     * @param apnName The APN name matched, or null
+     * @return The APN settings, {@link #NO_APN} if none matched, or null if not loaded yet
+     */
+    public synchronized ApnSettings get(int subId, String apnName) {
+        return mApns.get(getKey(subId, apnName));
+    }
+
+    /**
+     * @return The current generation of the cache, to pass to {@link #put}
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Remember the APN settings loaded, unless the cache was invalidated since the load started.
+     *
+     * @param subId      The subscription of the APN
+     * @param apnName    The APN name matched, or null
+     * @param apn        The APN settings, or {@link #NO_APN} if none matched
+     * @param generation The generation of the cache when the load started
+     */
+    public synchronized void put(int subId, String apnName, ApnSettings apn, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        final String key = getKey(subId, apnName);
+        if (!mApns.containsKey(key) && mApns.size() >= MAX_ENTRIES) {
+            final Iterator<String> eldest = mApns.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        mApns.put(key, apn);
+    }
+
+    /**
+     * Forget all the APN settings of a subscription.
+     *
+     * @param subId The subscription
+     */
+    public synchronized void invalidate(int subId) {
+        mGeneration++;
+        final String prefix = getKey(subId, "");
+        mApns.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Forget all the APN settings.
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mApns.clear();
+    }
+
+    /**
+     * Print the APN settings loaded, with their debug text
+     *
+     * @param writer The writer of the dump
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("MMS APNs:");
+        for (Map.Entry<String, ApnSettings> entry : mApns.entrySet()) {
+            final ApnSettings apn = entry.getValue();
+            writer.println("  " + entry.getKey() + ": " + (apn == NO_APN ? "none"
+                    : apn.getMmscUrl() + " " + apn.getProxyAddress() + " " + apn.getProxyPort()
+                            + " " + apn.getDebugText()));
+        }
+    }
+
+    private static String getKey(int subId, String apnName) {
+        return subId + " " + (apnName != null ? apnName : "");
+    }
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
@@ -121,9 +122,10 @@ public class MmsConfigManager {
             LogUtil.i("MmsConfigManager loads mms config for "
                     + sub.getMccString() + "/" +  sub.getMncString()
                     + ", CarrierId " + sub.getCarrierId());
-            newConfigMap.put(
-                    subId,
-                    SmsManager.getSmsManagerForSubscriptionId(subId).getCarrierConfigValues());
+            final Bundle mmsConfig =
+                    SmsManager.getSmsManagerForSubscriptionId(subId).getCarrierConfigValues();
+            addExtraConfigValues(context, subId, mmsConfig);
+            newConfigMap.put(subId, mmsConfig);
         }
         synchronized(mSubIdConfigMap) {
             mSubIdConfigMap.clear();
@@ -131,4 +133,21 @@ public class MmsConfigManager {
         }
     }
 
+    /**
+     * Add the extra MMS config keys of {@link MmsConstants} set by the carrier config, since
+     * SmsManager#getCarrierConfigValues only copies the standard MMS keys.
+     */
+    private static void addExtraConfigValues(Context context, int subId, Bundle mmsConfig) {
+        final CarrierConfigManager configManager =
+                context.getSystemService(CarrierConfigManager.class);
+        if (mmsConfig == null || configManager == null) {
+            return;
+        }
+        final PersistableBundle extras =
+                configManager.getConfigForSubId(subId, MmsConstants.EXTRA_MMS_CONFIG_KEYS);
+        if (extras != null) {
+            mmsConfig.putAll(extras);
+        }
+    }
+
 }
@@ -22,4 +22,53 @@ public class MmsConstants {
     // MMS anomaly uuid
     public static final UUID MMS_ANOMALY_UUID = UUID.fromString(
             "e4330975-17be-43b7-87d6-d9f281d33278");
+
+    /*
+     * Extra MMS config keys, read from the MMS config bundle of the request with their default
+     * when absent.
+     */
+    // Connect to IPv4 literal MMSC or proxy through a synthesized NAT64 address on IPv6-only
+    // networks instead of waiting for IPv4 to be provisioned.
+    public static final String MMS_CONFIG_NAT64_SYNTHESIS_BOOL = "mms_nat64_synthesis_bool";
+    // Send PDUs of at least this size with "Expect: 100-continue", so they are only uploaded
+    // once the MMSC accepts the request headers. Disabled if negative, the default.
+    public static final String MMS_CONFIG_EXPECT_CONTINUE_THRESHOLD_BYTES_INT =
+            "mms_expect_continue_threshold_bytes_int";
+    // Abort an upload or download whose throughput stays below this many bytes per second for
+    // longer than the stall timeout, so that it is retried on a fresh connection. Disabled if 0.
+    public static final String MMS_CONFIG_STALL_MIN_BYTES_PER_SEC_INT =
+            "mms_stall_min_bytes_per_sec_int";
+    // How long the throughput of a transfer may stay below the floor above.
+    public static final String MMS_CONFIG_STALL_TIMEOUT_MS_INT = "mms_stall_timeout_ms_int";
+    // The engine executing the MMS HTTP requests, one of the MmsTransport.ENGINE_* values.
+    // MmsTransport.ENGINE_DEFAULT when absent or unknown.
+    public static final String MMS_CONFIG_TRANSPORT_ENGINE_STRING = "mms_transport_engine_string";
+    // Socket options of the MMS connections, left to the system when absent. The buffer sizes are
+    // set separately for satellite networks, whose bandwidth-delay product is much larger.
+    public static final String MMS_CONFIG_SOCKET_TCP_NODELAY_BOOL = "mms_socket_tcp_nodelay_bool";
+    public static final String MMS_CONFIG_SOCKET_KEEP_ALIVE_BOOL = "mms_socket_keep_alive_bool";
+    public static final String MMS_CONFIG_SOCKET_SEND_BUFFER_BYTES_INT =
+            "mms_socket_send_buffer_bytes_int";
+    public static final String MMS_CONFIG_SOCKET_RECEIVE_BUFFER_BYTES_INT =
+            "mms_socket_receive_buffer_bytes_int";
+    public static final String MMS_CONFIG_SATELLITE_SOCKET_SEND_BUFFER_BYTES_INT =
+            "mms_satellite_socket_send_buffer_bytes_int";
+    public static final String MMS_CONFIG_SATELLITE_SOCKET_RECEIVE_BUFFER_BYTES_INT =
+            "mms_satellite_socket_receive_buffer_bytes_int";
+
+    // The extra keys above, copied from the carrier config into the MMS config bundle, which
+    // SmsManager#getCarrierConfigValues only fills with the standard MMS keys.
+    public static final String[] EXTRA_MMS_CONFIG_KEYS = {
+            MMS_CONFIG_NAT64_SYNTHESIS_BOOL,
+            MMS_CONFIG_EXPECT_CONTINUE_THRESHOLD_BYTES_INT,
+            MMS_CONFIG_STALL_MIN_BYTES_PER_SEC_INT,
+            MMS_CONFIG_STALL_TIMEOUT_MS_INT,
+            MMS_CONFIG_TRANSPORT_ENGINE_STRING,
+            MMS_CONFIG_SOCKET_TCP_NODELAY_BOOL,
+            MMS_CONFIG_SOCKET_KEEP_ALIVE_BOOL,
+            MMS_CONFIG_SOCKET_SEND_BUFFER_BYTES_INT,
+            MMS_CONFIG_SOCKET_RECEIVE_BUFFER_BYTES_INT,
+            MMS_CONFIG_SATELLITE_SOCKET_SEND_BUFFER_BYTES_INT,
+            MMS_CONFIG_SATELLITE_SOCKET_RECEIVE_BUFFER_BYTES_INT,
+    };
 }
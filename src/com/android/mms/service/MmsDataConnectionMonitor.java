@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.telephony.PreciseDataConnectionState;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.telephony.data.ApnSetting;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.telephony.flags.Flags;
+
+/**
+ * Tracks the MMS capable data connections of a subscription for all its requests. It stays
+ * registered once started, so that the requests read the APN of their network without a
+ * registration per attempt, and without missing the state reported before they started.
+ */
+public class MmsDataConnectionMonitor extends TelephonyCallback implements
+        TelephonyCallback.PreciseDataConnectionStateListener {
+    private final Context mContext;
+    private final int mSubId;
+
+    /** The lock to update mNetworkIdToApn and mLastCauseCode. */
+    private final Object mLock = new Object();
+    /**
+     * Track the network agent Id to APN. Usually we have at most 2 networks that are capable of
+     * MMS at the same time (terrestrial and satellite)
+     */
+    @GuardedBy("mLock")
+    private final SparseArray<ApnSetting> mNetworkIdToApn = new SparseArray<>(2);
+    @GuardedBy("mLock")
+    private int mLastCauseCode;
+    // Incremented whenever mLastCauseCode is reported, so a request only takes the causes
+    // reported during its own attempts
+    @GuardedBy("mLock")
+    private long mCauseSequence;
+    @GuardedBy("this")
+    private boolean mStarted;
+
+    /**
+     * Constructor
+     *
+     * @param context The context
+     * @param subId   The subscription to monitor
+     */
+    public MmsDataConnectionMonitor(Context context, int subId) {
+        mContext = context;
+        mSubId = subId;
+    }
+
+    /**
+     * Start monitoring, if not done yet
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        final TelephonyManager telephonyManager = mContext.getSystemService(
+                TelephonyManager.class).createForSubscriptionId(mSubId);
+        telephonyManager.registerTelephonyCallback(r -> r.run(), this);
+        mStarted = true;
+    }
+
+    /**
+     * Stop monitoring and forget the data connections
+     */
+    public synchronized void stop() {
+        if (!mStarted) {
+            return;
+        }
+        final TelephonyManager telephonyManager = mContext.getSystemService(
+                TelephonyManager.class).createForSubscriptionId(mSubId);
+        telephonyManager.unregisterTelephonyCallback(this);
+        mStarted = false;
+        synchronized (mLock) {
+            mNetworkIdToApn.clear();
+        }
+    }
+
+    @Override
+    public void onPreciseDataConnectionStateChanged(
+            @NonNull PreciseDataConnectionState connectionState) {
+        ApnSetting apnSetting = connectionState.getApnSetting();
+        if (apnSetting != null) {
+            // Only track networks that are capable of MMS.
+            if ((apnSetting.getApnTypeBitmask() & ApnSetting.TYPE_MMS) != 0) {
+                LogUtil.d("onPreciseDataConnectionStateChanged: " + connectionState);
+                synchronized (mLock) {
+                    mLastCauseCode = connectionState.getLastCauseCode();
+                    mCauseSequence++;
+                    if (Flags.mmsGetApnFromPdsc()) {
+                        if (connectionState.getState() == TelephonyManager.DATA_DISCONNECTED) {
+                            mNetworkIdToApn.remove(connectionState.getNetId());
+                        } else {
+                            mNetworkIdToApn.put(connectionState.getNetId(), apnSetting);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param networkId The net Id of an MMS network
+     * @return The APN of the network, or null if not known
+     */
+    public ApnSetting getApn(int networkId) {
+        synchronized (mLock) {
+            return mNetworkIdToApn.get(networkId);
+        }
+    }
+
+    /**
+     * @return The last failure cause code of the MMS data connections
+     */
+    public int getLastCauseCode() {
+        synchronized (mLock) {
+            return mLastCauseCode;
+        }
+    }
+
+    /**
+     * @return The number of cause codes reported so far, to tell whether
+     *         {@link #getLastCauseCode} was reported after a given point
+     */
+    public long getCauseSequence() {
+        synchronized (mLock) {
+            return mCauseSequence;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.net.InetAddresses;
+import android.net.Network;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the resolution of MMSC and proxy host names on one MMS {@link Network}. Carrier private
+ * networks often have slow DNS, so every request on the same network reuses the answers until
+ * they expire instead of resolving them again. Only host names with a single address are cached,
+ * so that connections to the others still fall back across all their addresses.
+ */
+public class MmsDnsCache {
+    // How long a resolved address is reused. The platform resolver doesn't expose record TTLs, so
+    // this is kept short and entries are also dropped on any connection failure.
+    @VisibleForTesting
+    public static final long ENTRY_LIFETIME_MS = 2 * 60 * 1000;
+
+    // Maximum number of host names cached for one network
+    @VisibleForTesting
+    public static final int MAX_ENTRIES = 8;
+
+    private static final class Entry {
+        // The single address of the host, or null if it has several
+        final InetAddress mAddress;
+        final long mExpiryMillis;
+
+        Entry(InetAddress address, long expiryMillis) {
+            mAddress = address;
+            mExpiryMillis = expiryMillis;
+        }
+    }
+
+    private final Network mNetwork;
+
+    // The resolved host names, in least recently used order
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true /* accessOrder */);
+    // The proxies already built, keyed by "host:port", in least recently used order
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Proxy> mProxies =
+            new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true /* accessOrder */);
+    // The host names of the previous networks not resolved yet, see prewarm
+    @GuardedBy("this")
+    private final ArraySet<String> mPrewarmHosts = new ArraySet<>();
+
+    /**
+     * Constructor
+     *
+     * @param network The network to resolve host names on
+     */
+    public MmsDnsCache(Network network) {
+        this(network, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param network      The network to resolve host names on
+     * @param prewarmHosts The host names resolved on the previous networks, or null
+     */
+    public MmsDnsCache(Network network, Collection<String> prewarmHosts) {
+        mNetwork = network;
+        if (prewarmHosts != null) {
+            mPrewarmHosts.addAll(prewarmHosts);
+        }
+    }
+
+    /**
+     * Resolve a host name on the network, reusing the cached address if still valid.
+     *
+     * @param host The host name
+     * @return The address, or null if the host is already a numeric address or has several
+     *         addresses, for the connection to resolve it and fall back across them
+     * @throws UnknownHostException if the host can not be resolved
+     */
+    public InetAddress lookup(String host) throws UnknownHostException {
+        if (TextUtils.isEmpty(host) || isNumericHost(host)) {
+            return null;
+        }
+        synchronized (this) {
+            final Entry entry = mEntries.get(host);
+            if (entry != null && entry.mExpiryMillis > SystemClock.elapsedRealtime()) {
+                return entry.mAddress;
+            }
+        }
+        final InetAddress[] addresses = resolve(host);
+        final InetAddress address = addresses.length == 1 ? addresses[0] : null;
+        synchronized (this) {
+            putLocked(mEntries, host,
+                    new Entry(address, SystemClock.elapsedRealtime() + ENTRY_LIFETIME_MS));
+        }
+        return address;
+    }
+
+    /**
+     * Add an entry to a cache, evicting the least recently used one if full.
+     */
+    private static <V> void putLocked(LinkedHashMap<String, V> map, String key, V value) {
+        if (!map.containsKey(key) && map.size() >= MAX_ENTRIES) {
+            final Iterator<String> it = map.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        map.put(key, value);
+    }
+
+    /**
+     * Get the HTTP proxy for a host and port, reusing the one built by a previous request while
+     * its address is still valid.
+     *
+     * @param host The proxy host
+     * @param port The proxy port
+     * @return The proxy
+     * @throws UnknownHostException if the proxy host can not be resolved
+     */
+    public Proxy getProxy(String host, int port) throws UnknownHostException {
+        final InetAddress cached = lookup(host);
+        // A proxy has one address, the first one of a host with several like the platform
+        final InetAddress address = cached != null ? cached : mNetwork.getByName(host);
+        final String key = host + ":" + port;
+        synchronized (this) {
+            Proxy proxy = mProxies.get(key);
+            if (proxy == null
+                    || !address.equals(((InetSocketAddress) proxy.address()).getAddress())) {
+                proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(address, port));
+                putLocked(mProxies, key, proxy);
+            }
+            return proxy;
+        }
+    }
+
+    /**
+     * Resolve the host names of the previous networks not resolved yet. This is called on the
+     * thread of a request right after it acquired the network, so that both the MMSC and the
+     * proxy are cached before its connection. Concurrent requests share the host names to resolve.
+     */
+    public void prewarm() {
+        while (true) {
+            final String host;
+            synchronized (this) {
+                if (mPrewarmHosts.isEmpty()) {
+                    return;
+                }
+                host = mPrewarmHosts.removeAt(mPrewarmHosts.size() - 1);
+            }
+            try {
+                lookup(host);
+            } catch (UnknownHostException e) {
+                LogUtil.w("MmsDnsCache: failed to prewarm " + host);
+            }
+        }
+    }
+
+    /**
+     * @return The host names currently cached, to prewarm the cache of the next network
+     */
+    public synchronized Set<String> getHosts() {
+        final Set<String> hosts = new ArraySet<>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().mAddress != null) {
+                hosts.add(entry.getKey());
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Drop all the cached addresses, e.g. after a connection failure.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mProxies.clear();
+    }
+
+    @VisibleForTesting
+    protected InetAddress[] resolve(String host) throws UnknownHostException {
+        return mNetwork.getAllByName(host);
+    }
+
+    private static boolean isNumericHost(String host) {
+        // IPv6 literals in URLs are enclosed in brackets
+        return host.startsWith("[") || InetAddresses.isNumericAddress(host);
+    }
+}
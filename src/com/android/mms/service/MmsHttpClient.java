@@ -18,45 +18,58 @@ package com.android.mms.service;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
+import android.net.IpPrefix;
 import android.net.LinkProperties;
 import android.net.Network;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Base64;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.MmsInvalidResponseException;
+
+import com.google.android.mms.pdu.PduHeaders;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.net.ssl.HttpsURLConnection;
+
 /**
- * MMS HTTP client for sending and downloading MMS messages
+ * MMS HTTP client for sending and downloading MMS messages, the default {@link MmsTransport}
+ * engine based on {@link HttpURLConnection}
  */
-public class MmsHttpClient {
+public class MmsHttpClient implements MmsTransport {
     public static final String METHOD_POST = "POST";
     public static final String METHOD_GET = "GET";
 
@@ -65,6 +78,14 @@ public class MmsHttpClient {
     private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
     private static final String HEADER_USER_AGENT = "User-Agent";
     private static final String HEADER_CONNECTION = "Connection";
+    private static final String HEADER_HOST = "Host";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_LOCATION = "Location";
 
     // The "Accept" header value
     private static final String HEADER_VALUE_ACCEPT =
@@ -75,16 +96,64 @@ public class MmsHttpClient {
     private static final String HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET =
             "application/vnd.wap.mms-message";
     private static final String HEADER_CONNECTION_CLOSE = "close";
+    // The "Accept-Ranges" header value of servers supporting Range requests
+    private static final String HEADER_VALUE_ACCEPT_RANGES_BYTES = "bytes";
+
+    // The "Content-Range" header value: bytes first-last/length
+    private static final Pattern CONTENT_RANGE_P =
+            Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
 
     // Used for configs that specify a UA_PROF_URL, but not a name
     private static final String UA_PROF_TAG_NAME_DEFAULT = "x-wap-profile";
 
-    private static final int IPV4_WAIT_ATTEMPTS = 15;
-    private static final long IPV4_WAIT_DELAY_MS = 1000; // 1 seconds
+    private static final long IPV4_WAIT_TIMEOUT_MS = 15 * 1000; // 15 seconds
+
+    private static final String PROTOCOL_HTTP = "http";
+
+    // How long to wait for "100 Continue" before uploading anyway
+    private static final int EXPECT_CONTINUE_TIMEOUT_MS = 3 * 1000; // 3 seconds
+    private static final int HTTP_EXPECTATION_FAILED = 417;
+
+    // Redirect status codes missing from HttpURLConnection
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+    // Maximum number of redirects followed by one request
+    private static final int MAX_REDIRECTS = 5;
+
+    // Largest Content-Length for which the response buffer is allocated up front
+    private static final int MAX_PREALLOCATED_RESPONSE_SIZE = 8 * 1024 * 1024; // 8MB
+    // Size of the first and of the largest chunk used to read a response of unknown length
+    private static final int MIN_RESPONSE_CHUNK_SIZE = 4 * 1024; // 4KB
+    private static final int MAX_RESPONSE_CHUNK_SIZE = 256 * 1024; // 256KB
+    // Size of the X-Mms-Message-Type header, which starts every PDU
+    private static final int PDU_MESSAGE_TYPE_HEADER_SIZE = 2;
+
+    // Smallest transfer used to measure the throughput, smaller ones are dominated by latency
+    private static final int MIN_THROUGHPUT_SAMPLE_SIZE = 16 * 1024; // 16KB
 
     private final Context mContext;
     private final Network mNetwork;
     private final ConnectivityManager mConnectivityManager;
+    // The host name resolution cache of mNetwork
+    private final MmsDnsCache mDnsCache;
+    // Whether mNetwork is a satellite network, where everything is much slower
+    private final boolean mIsSatelliteTransport;
+    // Moving average of the throughput of the recent transfers on mNetwork, 0 if none yet
+    @GuardedBy("this")
+    private long mMeasuredBytesPerSec;
+
+    // The lock to update and wait on the link properties of mNetwork.
+    private final Object mLinkPropertiesLock = new Object();
+    // The latest LinkProperties of mNetwork, pushed by the NetworkCallback of MmsNetworkManager.
+    // Null until the first update arrives, in which case it is queried once on demand.
+    @GuardedBy("mLinkPropertiesLock")
+    private LinkProperties mLinkProperties;
+    // Whether mNetwork has been lost or suspended, so that nobody waits on it anymore.
+    @GuardedBy("mLinkPropertiesLock")
+    private boolean mNetworkGone;
+    // The time each request waited for IPv4 on mNetwork, until taken by the request
+    @GuardedBy("mLinkPropertiesLock")
+    private final ArrayMap<String, Long> mIpv4WaitMillis = new ArrayMap<>();
 
     /**
      * Constructor
@@ -94,87 +163,162 @@ public class MmsHttpClient {
      */
     public MmsHttpClient(Context context, Network network,
             ConnectivityManager connectivityManager) {
+        this(context, network, connectivityManager, null, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context The Context object
+     * @param network The Network for creating an OKHttp client
+     * @param connectivityManager The ConnectivityManager
+     * @param dnsCache The host name resolution cache of the network, or null to use a new one
+     * @param isSatelliteTransport Whether the network is a satellite network
+     */
+    public MmsHttpClient(Context context, Network network,
+            ConnectivityManager connectivityManager, MmsDnsCache dnsCache,
+            boolean isSatelliteTransport) {
         mContext = context;
         // Mms server is on a carrier private network so it may not be resolvable using 3rd party
         // private dns
         mNetwork = network.getPrivateDnsBypassingCopy();
         mConnectivityManager = connectivityManager;
+        mDnsCache = dnsCache != null ? dnsCache : new MmsDnsCache(mNetwork);
+        mIsSatelliteTransport = isSatelliteTransport;
     }
 
     /**
-     * Execute an MMS HTTP request, either a POST (sending) or a GET (downloading)
+     * Execute an MMS HTTP request, either a POST (sending) or a GET (downloading), resuming a
+     * previously interrupted download if possible
      *
-     * @param urlString  The request URL, for sending it is usually the MMSC, and for downloading
-     *                   it is the message URL
-     * @param pdu        For POST (sending) only, the PDU to send
-     * @param method     HTTP method, POST for sending and GET for downloading
-     * @param isProxySet Is there a proxy for the MMSC
-     * @param proxyHost  The proxy host
-     * @param proxyPort  The proxy port
-     * @param mmsConfig  The MMS config to use
-     * @param subId      The subscription ID used to get line number, etc.
-     * @param requestId  The request ID for logging
+     * @param urlString       The request URL, for sending it is usually the MMSC, and for
+     *                        downloading it is the message URL
+     * @param pdu             For POST (sending) only, the PDU to send
+     * @param method          HTTP method, POST for sending and GET for downloading
+     * @param isProxySet      Is there a proxy for the MMSC
+     * @param proxyHost       The proxy host
+     * @param proxyPort       The proxy port
+     * @param mmsConfig       The MMS config to use
+     * @param subId           The subscription ID used to get line number, etc.
+     * @param requestId       The request ID for logging
+     * @param partialDownload For GET (downloading) only, keeps the body received so far across
+     *                        attempts of the same download, or null
      * @return The HTTP response body
      * @throws MmsHttpException For any failures
      */
+    @Override
     public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
-            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId)
-            throws MmsHttpException {
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            PartialDownload partialDownload) throws MmsHttpException {
+        // Only sends go to the MMSC URL, downloads are on a URL of their own
+        final String redirected = METHOD_POST.equals(method)
+                ? MmsRedirectCache.getInstance().getRedirect(subId, urlString) : null;
+        if (redirected != null) {
+            LogUtil.i(requestId, "HTTP: moved to " + redactUrlForNonVerbose(redirected));
+            try {
+                return execute(redirected, pdu, method, isProxySet, proxyHost, proxyPort,
+                        mmsConfig, subId, requestId, partialDownload, 0/*redirectCount*/);
+            } catch (MmsHttpException e) {
+                if (isRedirectTargetFailure(e)) {
+                    // The new location is gone too, try the original URL on retry.
+                    MmsRedirectCache.getInstance().removeRedirect(subId, urlString);
+                }
+                throw e;
+            }
+        }
+        return execute(urlString, pdu, method, isProxySet, proxyHost, proxyPort, mmsConfig,
+                subId, requestId, partialDownload, 0/*redirectCount*/);
+    }
+
+    private byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            PartialDownload partialDownload, int redirectCount) throws MmsHttpException {
         LogUtil.d(requestId, "HTTP: " + method + " " + redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
                 + ", PDU size=" + (pdu != null ? pdu.length : 0));
         checkMethod(method);
+        final MmsHttpTimeouts timeouts =
+                new MmsHttpTimeouts(mmsConfig, mIsSatelliteTransport, getMeasuredBytesPerSec());
+        LogUtil.d(requestId, "HTTP: timeouts " + timeouts);
+        final MmsSocketOptions socketOptions =
+                new MmsSocketOptions(mmsConfig, mIsSatelliteTransport);
+        // Socket timeouts only catch idle connections, this bounds the whole exchange.
+        final MmsTransferWatchdog watchdog = new MmsTransferWatchdog(requestId);
         HttpURLConnection connection = null;
         try {
+            final boolean nat64Enabled = mmsConfig.getBoolean(
+                    MmsConstants.MMS_CONFIG_NAT64_SYNTHESIS_BOOL, false);
+            boolean nat64Applied = false;
             Proxy proxy = Proxy.NO_PROXY;
             if (isProxySet) {
-                proxy = new Proxy(Proxy.Type.HTTP,
-                        new InetSocketAddress(mNetwork.getByName(proxyHost), proxyPort));
+                final InetAddress nat64Address =
+                        nat64Enabled ? maybeSynthesizeNat64(requestId, proxyHost) : null;
+                if (nat64Address != null) {
+                    nat64Applied = true;
+                    proxy = new Proxy(Proxy.Type.HTTP,
+                            new InetSocketAddress(nat64Address, proxyPort));
+                } else {
+                    proxy = mDnsCache.getProxy(proxyHost, proxyPort);
+                }
+            }
+            final URL originalUrl = new URL(urlString);
+            URL url = originalUrl;
+            String hostHeader = null;
+            // Only plain http can be redirected to another address, https needs the original host
+            // name for certificate validation.
+            if (!isProxySet && PROTOCOL_HTTP.equals(url.getProtocol())) {
+                InetAddress mmscAddress =
+                        nat64Enabled ? maybeSynthesizeNat64(requestId, url.getHost()) : null;
+                if (mmscAddress != null) {
+                    nat64Applied = true;
+                } else {
+                    // Use the cached resolution of the MMSC host name, if it is a name with a
+                    // single address. The connection resolves the others to try them all.
+                    mmscAddress = mDnsCache.lookup(url.getHost());
+                }
+                if (mmscAddress != null) {
+                    hostHeader = url.getAuthority();
+                    url = new URL(url.getProtocol(), toUrlHost(mmscAddress), url.getPort(),
+                            url.getFile());
+                }
+            }
+            if (!nat64Applied) {
+                maybeWaitForIpv4(requestId, originalUrl);
             }
-            final URL url = new URL(urlString);
-            maybeWaitForIpv4(requestId, url);
             // Now get the connection
             connection = (HttpURLConnection) mNetwork.openConnection(url, proxy);
-            connection.setDoInput(true);
-            connection.setConnectTimeout(
-                    mmsConfig.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT));
-            connection.setReadTimeout(
-                    mmsConfig.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT));
-            // ------- COMMON HEADERS ---------
-            // Header: Accept
-            connection.setRequestProperty(HEADER_ACCEPT, HEADER_VALUE_ACCEPT);
-            // Header: Accept-Language
-            connection.setRequestProperty(
-                    HEADER_ACCEPT_LANGUAGE, getCurrentAcceptLanguage(Locale.getDefault()));
-            // Header: User-Agent
-            final String userAgent = mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT);
-            LogUtil.i(requestId, "HTTP: User-Agent=" + userAgent);
-            connection.setRequestProperty(HEADER_USER_AGENT, userAgent);
-            // Header: x-wap-profile
-            String uaProfUrlTagName =
-                    mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
-            final String uaProfUrl = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
-
-            if (!TextUtils.isEmpty(uaProfUrl)) {
-                if (TextUtils.isEmpty(uaProfUrlTagName)) {
-                    uaProfUrlTagName = UA_PROF_TAG_NAME_DEFAULT;
+            if (hostHeader != null) {
+                // Keep addressing the MMSC by its original authority.
+                connection.setRequestProperty(HEADER_HOST, hostHeader);
+            }
+            if (connection instanceof HttpsURLConnection) {
+                if (!socketOptions.isDefault()) {
+                    // The only hook on the sockets of HttpURLConnection, for https only. The
+                    // default factory keeps its process-wide TLS session cache.
+                    final HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+                    httpsConnection.setSSLSocketFactory(new MmsSocketFactory.Ssl(
+                            httpsConnection.getSSLSocketFactory(), socketOptions));
                 }
-
-                LogUtil.i(requestId,
-                        "HTTP: UaProfUrl=" + uaProfUrl + ", UaProfUrlTagName=" + uaProfUrlTagName);
-
-                connection.setRequestProperty(uaProfUrlTagName, uaProfUrl);
+            } else if (!socketOptions.isDefault() && (pdu == null
+                    || !METHOD_POST.equals(method) || !shouldExpectContinue(url, pdu, mmsConfig))) {
+                // Plain http POSTs are routed to the nio engine for their socket options, see
+                // MmsNetworkManager#getOrCreateTransport. The other requests can't get them.
+                LogUtil.w(requestId, "HTTP: socket options not applied to plain http " + method);
             }
-            // Header: Connection: close (if needed)
-            // Some carriers require that the HTTP connection's socket is closed
-            // after an MMS request/response is complete. In these cases keep alive
-            // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
-            if (mmsConfig.getBoolean(CarrierConfigManager.KEY_MMS_CLOSE_CONNECTION_BOOL, false)) {
-                LogUtil.i(requestId, "HTTP: Connection close after request");
-                connection.setRequestProperty(HEADER_CONNECTION, HEADER_CONNECTION_CLOSE);
+            connection.setDoInput(true);
+            // Redirects are followed below, to remember the permanent ones.
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(timeouts.getConnectTimeoutMillis());
+            connection.setReadTimeout(timeouts.getReadTimeoutMillis());
+            watchdog.setAbortAction(connection::disconnect);
+            watchdog.setDeadline(timeouts.getTotalTimeoutMillis(pdu != null ? pdu.length : 0));
+            watchdog.setStallDetection(
+                    timeouts.getStallMinBytesPerSec(), timeouts.getStallTimeoutMillis());
+            for (Map.Entry<String, String> header
+                    : buildCommonHeaders(mmsConfig, subId, requestId).entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
             }
-            // Add extra headers specified by mms_config.xml's httpparams
-            addExtraHeaders(connection, mmsConfig, subId);
+            long uploadStartMs = 0;
             // Different stuff for GET and POST
             if (METHOD_POST.equals(method)) {
                 if (pdu == null || pdu.length < 1) {
@@ -183,28 +327,46 @@ public class MmsHttpClient {
                 }
                 connection.setDoOutput(true);
                 connection.setRequestMethod(METHOD_POST);
-                if (mmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_HTTP_CHARSET_HEADER)) {
-                    connection.setRequestProperty(HEADER_CONTENT_TYPE,
-                            HEADER_VALUE_CONTENT_TYPE_WITH_CHARSET);
-                } else {
-                    connection.setRequestProperty(HEADER_CONTENT_TYPE,
-                            HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET);
-                }
+                connection.setRequestProperty(HEADER_CONTENT_TYPE, getPostContentType(mmsConfig));
                 if (LogUtil.isLoggable(Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties(), requestId);
                 }
+                if (shouldExpectContinue(url, pdu, mmsConfig)) {
+                    final byte[] responseBody = postWithExpectContinue(
+                            requestId, url, proxy, connection, pdu, timeouts, socketOptions,
+                            watchdog);
+                    if (responseBody != null) {
+                        return responseBody;
+                    }
+                    // Otherwise the expectation is not supported, upload as usual.
+                    watchdog.setAbortAction(connection::disconnect);
+                }
                 connection.setFixedLengthStreamingMode(pdu.length);
-                // Sending request body
-                final OutputStream out =
-                        new BufferedOutputStream(connection.getOutputStream());
+                // Sending request body, streamed to the socket so time the upload from here
+                uploadStartMs = SystemClock.elapsedRealtime();
+                final OutputStream out = new BufferedOutputStream(
+                        watchdog.monitor(connection.getOutputStream()));
+                watchdog.startProgress();
                 out.write(pdu);
                 out.flush();
                 out.close();
+                // The MMSC may take a while to process the PDU, which is not a stall.
+                watchdog.stopProgress();
             } else if (METHOD_GET.equals(method)) {
                 if (LogUtil.isLoggable(Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties(), requestId);
                 }
                 connection.setRequestMethod(METHOD_GET);
+                if (partialDownload != null && partialDownload.isResumable()) {
+                    LogUtil.i(requestId, "HTTP: resume download at "
+                            + partialDownload.mReceived + "/" + partialDownload.mBody.length);
+                    connection.setRequestProperty(HEADER_RANGE,
+                            "bytes=" + partialDownload.mReceived + "-");
+                    if (partialDownload.mValidator != null) {
+                        // Get the whole body again if it has changed since
+                        connection.setRequestProperty(HEADER_IF_RANGE, partialDownload.mValidator);
+                    }
+                }
             }
             // Get response
             final int responseCode = connection.getResponseCode();
@@ -213,18 +375,64 @@ public class MmsHttpClient {
             if (LogUtil.isLoggable(Log.VERBOSE)) {
                 logHttpHeaders(connection.getHeaderFields(), requestId);
             }
+            final Redirect redirect = getRedirect(requestId, responseCode,
+                    connection.getHeaderField(HEADER_LOCATION), urlString, method, pdu, subId,
+                    redirectCount);
+            if (redirect != null) {
+                watchdog.close();
+                connection.disconnect();
+                connection = null;
+                return execute(redirect.mUrl, redirect.mPdu, redirect.mMethod, isProxySet,
+                        proxyHost, proxyPort, mmsConfig, subId, requestId, partialDownload,
+                        redirectCount + 1);
+            }
             if (responseCode / 100 != 2) {
+                if (partialDownload != null) {
+                    partialDownload.reset();
+                }
                 throw new MmsHttpException(responseCode, responseMessage);
             }
-            final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            checkContentType(requestId, responseCode, connection.getContentType());
+            if (METHOD_POST.equals(method)) {
+                // The upload is only complete once the MMSC has responded
+                recordThroughput(pdu.length, SystemClock.elapsedRealtime() - uploadStartMs);
+            }
+            final long contentLength = connection.getContentLengthLong();
+            if (METHOD_GET.equals(method)) {
+                // Now that the size is known, give the download the time it needs. Otherwise
+                // only bound it loosely, and let the stall detection catch dead transfers.
+                watchdog.setDeadline(contentLength >= 0
+                        ? timeouts.getTotalTimeoutMillis(contentLength)
+                        : timeouts.getMaxTotalTimeoutMillis());
+            }
+            final long bodyStartMs = SystemClock.elapsedRealtime();
+            final PushbackInputStream in = new PushbackInputStream(
+                    watchdog.monitor(connection.getInputStream()), PDU_MESSAGE_TYPE_HEADER_SIZE);
+            final byte[] responseBody;
+            watchdog.startProgress();
+            try {
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    // Don't download a whole error page only to fail to parse it later.
+                    checkPduStart(requestId, responseCode, in);
+                }
+                if (partialDownload != null) {
+                    responseBody = readResumableBody(
+                            requestId, connection, responseCode, in, partialDownload);
+                } else if (contentLength >= 0 && contentLength <= MAX_PREALLOCATED_RESPONSE_SIZE) {
+                    // Read straight into a buffer of the announced size.
+                    responseBody = readFully(in, (int) contentLength);
+                } else {
+                    responseBody = readUntilEof(in);
+                }
+            } finally {
+                watchdog.stopProgress();
+                in.close();
+            }
+            if (METHOD_GET.equals(method) && responseBody != null) {
+                // Only count what was received by this attempt
+                recordThroughput(contentLength >= 0 ? contentLength : responseBody.length,
+                        SystemClock.elapsedRealtime() - bodyStartMs);
             }
-            in.close();
-            final byte[] responseBody = byteOut.toByteArray();
             LogUtil.d(requestId, "HTTP: response size="
                     + (responseBody != null ? responseBody.length : 0));
             return responseBody;
@@ -238,49 +446,657 @@ public class MmsHttpClient {
             throw new MmsHttpException(0/*statusCode*/, "Invalid URL protocol " + redactedUrl, e);
         } catch (IOException e) {
             LogUtil.e(requestId, "HTTP: IO failure", e);
+            // The cached addresses may be stale, resolve them again on retry.
+            mDnsCache.clear();
+            final String abortReason = watchdog.getAbortReason();
+            if (abortReason != null) {
+                throw new MmsHttpException(0/*statusCode*/, "Transfer aborted: " + abortReason, e);
+            }
             throw new MmsHttpException(0/*statusCode*/, e);
         } finally {
+            watchdog.close();
             if (connection != null) {
                 connection.disconnect();
             }
         }
     }
 
-    private void maybeWaitForIpv4(final String requestId, final URL url) {
+    /**
+     * Fail fast on a success response whose Content-Type is clearly not an MMS PDU. The header is
+     * often missing or generic, so only text types are rejected.
+     */
+    static void checkContentType(String requestId, int responseCode, String contentType)
+            throws MmsInvalidResponseException {
+        if (isNonPduContentType(contentType)) {
+            LogUtil.e(requestId, "HTTP: unexpected Content-Type " + contentType);
+            throw new MmsInvalidResponseException(responseCode,
+                    "Unexpected Content-Type " + contentType);
+        }
+    }
+
+    @VisibleForTesting
+    public static boolean isNonPduContentType(String contentType) {
+        if (TextUtils.isEmpty(contentType)) {
+            return false;
+        }
+        final String mediaType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        return mediaType.startsWith("text/") || mediaType.contains("html")
+                || mediaType.contains("json");
+    }
+
+    /**
+     * Peek at the first header of the body, which must be X-Mms-Message-Type, and leave it in the
+     * stream.
+     */
+    private static void checkPduStart(String requestId, int responseCode, PushbackInputStream in)
+            throws IOException, MmsInvalidResponseException {
+        final byte[] head = new byte[PDU_MESSAGE_TYPE_HEADER_SIZE];
+        int length = 0;
+        int count;
+        while (length < head.length
+                && (count = in.read(head, length, head.length - length)) != -1) {
+            length += count;
+        }
+        if (!isPduStart(head, length)) {
+            LogUtil.e(requestId, "HTTP: response body is not an MMS PDU");
+            throw new MmsInvalidResponseException(responseCode, "Response is not an MMS PDU");
+        }
+        in.unread(head, 0, length);
+    }
+
+    /**
+     * Check a response already read in full, by the engines not using HttpURLConnection.
+     */
+    static void checkResponse(String requestId, int responseCode,
+            HttpResponseParser.Response response, byte[] responseBody)
+            throws MmsInvalidResponseException {
+        checkContentType(requestId, responseCode, response.getHeader("content-type"));
+        if (!isPduStart(responseBody,
+                Math.min(responseBody.length, PDU_MESSAGE_TYPE_HEADER_SIZE))) {
+            LogUtil.e(requestId, "HTTP: response body is not an MMS PDU");
+            throw new MmsInvalidResponseException(responseCode, "Response is not an MMS PDU");
+        }
+    }
+
+    /**
+     * Read the body of a response, by the engines not using HttpURLConnection, once it starts
+     * like an MMS PDU, so that an error page is not downloaded in full.
+     *
+     * @param body          The stream of the body
+     * @param contentLength The length of the body, or -1 if it ends with the stream
+     * @return The response body
+     */
+    static byte[] readPduBody(String requestId, int responseCode, InputStream body,
+            long contentLength) throws IOException, MmsInvalidResponseException {
+        if (contentLength == 0) {
+            return new byte[0];
+        }
+        final PushbackInputStream in = new PushbackInputStream(body, PDU_MESSAGE_TYPE_HEADER_SIZE);
+        checkPduStart(requestId, responseCode, in);
+        return contentLength >= 0 ? readBody(in, contentLength) : readUntilEof(in);
+    }
+
+    /**
+     * @param head   The first bytes of the response body
+     * @param length The number of bytes in head, at most 2
+     * @return Whether the body is empty or starts with a valid X-Mms-Message-Type header
+     */
+    @VisibleForTesting
+    public static boolean isPduStart(byte[] head, int length) {
+        if (length == 0) {
+            // Some requests, like M-NotifyResp.ind, get an empty response
+            return true;
+        }
+        if (length < PDU_MESSAGE_TYPE_HEADER_SIZE
+                || (head[0] & 0xff) != PduHeaders.MESSAGE_TYPE) {
+            return false;
+        }
+        final int messageType = head[1] & 0xff;
+        return messageType >= PduHeaders.MESSAGE_TYPE_SEND_REQ
+                && messageType <= PduHeaders.MESSAGE_TYPE_CANCEL_CONF;
+    }
+
+    /**
+     * A redirect to follow, see {@link #getRedirect}.
+     */
+    static class Redirect {
+        final String mUrl;
+        final String mMethod;
+        final byte[] mPdu;
+
+        Redirect(String url, String method, byte[] pdu) {
+            mUrl = url;
+            mMethod = method;
+            mPdu = pdu;
+        }
+    }
+
+    /**
+     * Get where and how to send a request again after a redirect response, and remember the
+     * permanent ones. Shared by the transport engines.
+     *
+     * @param requestId     The request ID for logging
+     * @param responseCode  The HTTP status code of the response
+     * @param location      The Location header of the response, or null
+     * @param urlString     The URL of the request
+     * @param method        The HTTP method of the request
+     * @param pdu           The PDU of the request, null for a GET
+     * @param subId         The subscription ID of the request
+     * @param redirectCount The number of redirects already followed by the request
+     * @return The redirect to follow, or null if the response is not a redirect
+     * @throws MalformedURLException if the location is not a valid URL
+     * @throws MmsHttpException if the request was redirected too many times
+     */
+    static Redirect getRedirect(String requestId, int responseCode, String location,
+            String urlString, String method, byte[] pdu, int subId, int redirectCount)
+            throws MalformedURLException, MmsHttpException {
+        if (!isRedirect(responseCode) || location == null) {
+            return null;
+        }
+        if (redirectCount >= MAX_REDIRECTS) {
+            throw new MmsHttpException(responseCode, "Too many redirects");
+        }
+        final URL originalUrl = new URL(urlString);
+        final URL targetUrl = new URL(originalUrl, location);
+        if (!originalUrl.getProtocol().equals(targetUrl.getProtocol())) {
+            // Like HttpURLConnection, never switch between http and https
+            LogUtil.w(requestId, "HTTP: not following redirect from " + originalUrl.getProtocol()
+                    + " to " + targetUrl.getProtocol());
+            return null;
+        }
+        final String target = targetUrl.toString();
+        final boolean permanent = responseCode == HttpURLConnection.HTTP_MOVED_PERM
+                || responseCode == HTTP_PERMANENT_REDIRECT;
+        // Like HttpURLConnection, a POST turns into a GET on 302 and 303. It is kept on 301
+        // though, which is how carriers announce that their MMSC has moved.
+        final boolean keepMethod = permanent || responseCode == HTTP_TEMPORARY_REDIRECT
+                || METHOD_GET.equals(method);
+        // Remember where the MMSC the sends are posted to has moved. Downloads are on a URL of
+        // their own, which is never requested again.
+        if (permanent && METHOD_POST.equals(method)) {
+            LogUtil.i(requestId, "HTTP: permanently moved to " + redactUrlForNonVerbose(target));
+            MmsRedirectCache.getInstance().putRedirect(subId, urlString, target);
+        }
+        return new Redirect(target, keepMethod ? method : METHOD_GET, keepMethod ? pdu : null);
+    }
+
+    /**
+     * @return Whether a request failed because the target of a remembered redirect is gone, as
+     *         opposed to e.g. a timeout or a server error the original URL may hit as well
+     */
+    @VisibleForTesting
+    public static boolean isRedirectTargetFailure(MmsHttpException e) {
+        final int statusCode = e.getStatusCode();
+        return statusCode == HttpURLConnection.HTTP_NOT_FOUND
+                || statusCode == HttpURLConnection.HTTP_GONE
+                || e.getCause() instanceof UnknownHostException;
+    }
+
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_MOVED_PERM
+                || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+                || responseCode == HttpURLConnection.HTTP_SEE_OTHER
+                || responseCode == HTTP_TEMPORARY_REDIRECT
+                || responseCode == HTTP_PERMANENT_REDIRECT;
+    }
+
+    private static boolean shouldExpectContinue(URL url, byte[] pdu, Bundle mmsConfig) {
+        final int threshold = mmsConfig.getInt(
+                MmsConstants.MMS_CONFIG_EXPECT_CONTINUE_THRESHOLD_BYTES_INT, -1);
+        return threshold >= 0 && pdu.length >= threshold
+                && PROTOCOL_HTTP.equals(url.getProtocol());
+    }
+
+    /**
+     * POST the PDU with "Expect: 100-continue", so that it is not uploaded when the MMSC rejects
+     * the request, e.g. because it is too large or the quota is exceeded.
+     *
+     * @return The response body, or null if the MMSC does not support the expectation
+     */
+    private byte[] postWithExpectContinue(String requestId, URL url, Proxy proxy,
+            HttpURLConnection connection, byte[] pdu, MmsHttpTimeouts timeouts,
+            MmsSocketOptions socketOptions, MmsTransferWatchdog watchdog)
+            throws IOException, MmsHttpException {
+        LogUtil.i(requestId, "HTTP: POST with Expect: 100-continue");
+        final ExpectContinuePost post = new ExpectContinuePost(mNetwork,
+                new MmsSocketFactory(mNetwork.getSocketFactory(), socketOptions), url, proxy);
+        watchdog.setAbortAction(post::cancel);
+        final long transferStartMs = SystemClock.elapsedRealtime();
+        final HttpResponseParser.Response response = post.execute(
+                connection.getRequestProperties(), pdu, timeouts.getConnectTimeoutMillis(),
+                timeouts.getReadTimeoutMillis(), EXPECT_CONTINUE_TIMEOUT_MS, watchdog);
+        final int responseCode = response.getStatusCode();
+        LogUtil.d(requestId, "HTTP: " + responseCode + " " + response.getMessage());
+        if (LogUtil.isLoggable(Log.VERBOSE)) {
+            logHttpHeaders(response.getHeaders(), requestId);
+        }
+        if (responseCode == HTTP_EXPECTATION_FAILED) {
+            LogUtil.w(requestId, "HTTP: Expect: 100-continue not supported");
+            return null;
+        }
+        if (responseCode / 100 != 2) {
+            throw new MmsHttpException(responseCode, response.getMessage());
+        }
+        final byte[] responseBody = response.getBody();
+        checkResponse(requestId, responseCode, response, responseBody);
+        // Like the usual upload, measured until the MMSC responded with the PDU accepted
+        recordThroughput(pdu.length, SystemClock.elapsedRealtime() - transferStartMs);
+        LogUtil.d(requestId, "HTTP: response size=" + responseBody.length);
+        return responseBody;
+    }
+
+    Network getNetwork() {
+        return mNetwork;
+    }
+
+    MmsDnsCache getDnsCache() {
+        return mDnsCache;
+    }
+
+    boolean isSatelliteTransport() {
+        return mIsSatelliteTransport;
+    }
+
+    synchronized long getMeasuredBytesPerSec() {
+        return mMeasuredBytesPerSec;
+    }
+
+    /**
+     * Fold the throughput of a completed transfer into the moving average of the network.
+     */
+    synchronized void recordThroughput(long bytes, long elapsedMs) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_SIZE || elapsedMs <= 0) {
+            return;
+        }
+        final long bytesPerSec = bytes * 1000 / elapsedMs;
+        mMeasuredBytesPerSec = mMeasuredBytesPerSec == 0
+                ? bytesPerSec : (3 * mMeasuredBytesPerSec + bytesPerSec) / 4;
+    }
+
+    /**
+     * Wait for IPv4 to be provisioned if the URL host is an IPv4 literal.
+     */
+    void maybeWaitForIpv4(final String requestId, final URL url) {
         // If it's a literal IPv4 address and we're on an IPv6-only network,
         // wait until IPv4 is available.
-        Inet4Address ipv4Literal = null;
-        try {
-            ipv4Literal = (Inet4Address) InetAddress.parseNumericAddress(url.getHost());
-        } catch (IllegalArgumentException | ClassCastException e) {
-            // Ignore
-        }
+        final Inet4Address ipv4Literal = parseIpv4Literal(url.getHost());
         if (ipv4Literal == null) {
             // Not an IPv4 address.
             return;
         }
-        for (int i = 0; i < IPV4_WAIT_ATTEMPTS; i++) {
-            final LinkProperties lp = mConnectivityManager.getLinkProperties(mNetwork);
-            if (lp != null) {
-                if (!lp.isReachable(ipv4Literal)) {
-                    LogUtil.w(requestId, "HTTP: IPv4 not yet provisioned");
+        synchronized (mLinkPropertiesLock) {
+            updateLinkPropertiesIfNeededLocked();
+            // Wait for onLinkPropertiesChanged with a single deadline instead of polling, so the
+            // request continues as soon as the IPv4 route shows up.
+            final long startMs = SystemClock.elapsedRealtime();
+            final long deadline = startMs + IPV4_WAIT_TIMEOUT_MS;
+            boolean loggedWaiting = false;
+            try {
+                while (true) {
+                    if (mNetworkGone || mLinkProperties == null) {
+                        LogUtil.w(requestId, "HTTP: network disconnected, skip ipv4 check");
+                        return;
+                    }
+                    if (mLinkProperties.isReachable(ipv4Literal)) {
+                        LogUtil.i(requestId, "HTTP: IPv4 provisioned");
+                        return;
+                    }
+                    final long remaining = deadline - SystemClock.elapsedRealtime();
+                    if (remaining <= 0) {
+                        LogUtil.w(requestId, "HTTP: IPv4 not provisioned after "
+                                + IPV4_WAIT_TIMEOUT_MS + "ms");
+                        return;
+                    }
+                    if (!loggedWaiting) {
+                        LogUtil.w(requestId, "HTTP: IPv4 not yet provisioned");
+                        loggedWaiting = true;
+                    }
                     try {
-                        Thread.sleep(IPV4_WAIT_DELAY_MS);
+                        mLinkPropertiesLock.wait(remaining);
                     } catch (InterruptedException e) {
-                        // Ignore
+                        LogUtil.w(requestId, "HTTP: IPv4 wait interrupted");
+                        return;
                     }
-                } else {
-                    LogUtil.i(requestId, "HTTP: IPv4 provisioned");
-                    break;
                 }
-            } else {
-                LogUtil.w(requestId, "HTTP: network disconnected, skip ipv4 check");
+            } finally {
+                if (loggedWaiting) {
+                    final long waitMs = SystemClock.elapsedRealtime() - startMs;
+                    mIpv4WaitMillis.put(requestId,
+                            mIpv4WaitMillis.getOrDefault(requestId, 0L) + waitMs);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long takeIpv4WaitMillis(String requestId) {
+        synchronized (mLinkPropertiesLock) {
+            final Long waitMs = mIpv4WaitMillis.remove(requestId);
+            return waitMs == null ? 0 : waitMs;
+        }
+    }
+
+    /**
+     * If the host is an IPv4 literal that the network can't reach natively, synthesize its IPv6
+     * address from the NAT64 prefix of the network (RFC 6052), so the request can go out right
+     * away instead of waiting for CLAT.
+     *
+     * @param requestId request ID for logging
+     * @param host the host to connect to
+     * @return the synthesized address, or null if the host should be used as is
+     */
+    private InetAddress maybeSynthesizeNat64(final String requestId, final String host) {
+        final Inet4Address ipv4Literal = parseIpv4Literal(host);
+        if (ipv4Literal == null) {
+            return null;
+        }
+        final IpPrefix nat64Prefix;
+        synchronized (mLinkPropertiesLock) {
+            updateLinkPropertiesIfNeededLocked();
+            if (mNetworkGone || mLinkProperties == null
+                    || mLinkProperties.isReachable(ipv4Literal)) {
+                return null;
+            }
+            nat64Prefix = mLinkProperties.getNat64Prefix();
+        }
+        if (nat64Prefix == null) {
+            LogUtil.d(requestId, "HTTP: no NAT64 prefix for IPv4 literal");
+            return null;
+        }
+        final Inet6Address synthesized = synthesizeNat64Address(nat64Prefix, ipv4Literal);
+        if (synthesized != null) {
+            LogUtil.i(requestId, "HTTP: IPv4 not provisioned, using NAT64 prefix " + nat64Prefix);
+        }
+        return synthesized;
+    }
+
+    /**
+     * Embed an IPv4 address into a NAT64 prefix as described in RFC 6052 section 2.2.
+     *
+     * @param prefix the NAT64 prefix, its length must be 32, 40, 48, 56, 64 or 96
+     * @param ipv4 the IPv4 address to embed
+     * @return the IPv4-embedded IPv6 address, or null if the prefix is not valid
+     */
+    @VisibleForTesting
+    public static Inet6Address synthesizeNat64Address(IpPrefix prefix, Inet4Address ipv4) {
+        final int prefixLength = prefix.getPrefixLength();
+        if (!(prefix.getAddress() instanceof Inet6Address)
+                || (prefixLength != 96 && (prefixLength < 32 || prefixLength > 64
+                        || prefixLength % 8 != 0))) {
+            return null;
+        }
+        final byte[] address = new byte[16];
+        System.arraycopy(prefix.getRawAddress(), 0, address, 0, prefixLength / 8);
+        int index = prefixLength / 8;
+        for (byte b : ipv4.getAddress()) {
+            // Bits 64 to 71 of the address are reserved and must be zero.
+            if (index == 8) {
+                index++;
+            }
+            address[index++] = b;
+        }
+        try {
+            return (Inet6Address) InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static String toUrlHost(InetAddress address) {
+        final String hostAddress = address.getHostAddress();
+        return address instanceof Inet6Address ? "[" + hostAddress + "]" : hostAddress;
+    }
+
+    /**
+     * @return Whether the host is an IPv4 literal
+     */
+    static boolean isIpv4Literal(String host) {
+        return parseIpv4Literal(host) != null;
+    }
+
+    private static Inet4Address parseIpv4Literal(String host) {
+        try {
+            return (Inet4Address) InetAddress.parseNumericAddress(host);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private void updateLinkPropertiesIfNeededLocked() {
+        if (mLinkProperties == null && !mNetworkGone) {
+            // No update pushed yet, take a snapshot to start from.
+            mLinkProperties = mConnectivityManager.getLinkProperties(mNetwork);
+        }
+    }
+
+    /**
+     * Update the link properties of the network this client is bound to. Called from the
+     * NetworkCallback of {@link MmsNetworkManager} and wakes up requests waiting for IPv4.
+     *
+     * @param linkProperties the new LinkProperties of the network
+     */
+    void onLinkPropertiesChanged(LinkProperties linkProperties) {
+        synchronized (mLinkPropertiesLock) {
+            mLinkProperties = linkProperties;
+            mLinkPropertiesLock.notifyAll();
+        }
+    }
+
+    /**
+     * Indicate the network this client is bound to is lost or suspended, so requests waiting
+     * for IPv4 give up immediately.
+     */
+    void onNetworkGone() {
+        synchronized (mLinkPropertiesLock) {
+            mNetworkGone = true;
+            mLinkPropertiesLock.notifyAll();
+        }
+    }
+
+    /**
+     * The body of a download received so far, to continue it with a Range request on the next
+     * attempt when the MMSC supports it.
+     */
+    public static class PartialDownload {
+        // The buffer for the whole body, null if nothing can be resumed
+        private byte[] mBody;
+        // The number of bytes of mBody received so far
+        private int mReceived;
+        // The strong ETag or the Last-Modified date of the body, if any
+        private String mValidator;
+
+        private boolean isResumable() {
+            return mBody != null && mReceived > 0 && mReceived < mBody.length;
+        }
+
+        private void reset() {
+            mBody = null;
+            mReceived = 0;
+            mValidator = null;
+        }
+    }
+
+    private static byte[] readResumableBody(String requestId, HttpURLConnection connection,
+            int responseCode, InputStream in, PartialDownload partial) throws IOException {
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL && partial.isResumable()) {
+            if (!isExpectedContentRange(connection.getHeaderField(HEADER_CONTENT_RANGE),
+                    partial.mReceived, partial.mBody.length)) {
+                partial.reset();
+                throw new IOException("Unexpected Content-Range, download from start");
+            }
+            LogUtil.i(requestId, "HTTP: download resumed at " + partial.mReceived);
+        } else {
+            // The whole body is sent, either first attempt or resuming was not possible
+            partial.reset();
+            final long contentLength = connection.getContentLengthLong();
+            if (contentLength < 0 || contentLength > MAX_PREALLOCATED_RESPONSE_SIZE) {
+                return readUntilEof(in);
+            }
+            final byte[] body = new byte[(int) contentLength];
+            if (!HEADER_VALUE_ACCEPT_RANGES_BYTES.equalsIgnoreCase(
+                    connection.getHeaderField(HEADER_ACCEPT_RANGES))) {
+                readFully(in, body, 0);
+                return body;
+            }
+            partial.mBody = body;
+            partial.mValidator = getValidator(connection);
+        }
+        // Keep track of the progress, so the next attempt can continue from there
+        while (partial.mReceived < partial.mBody.length) {
+            partial.mReceived = readFully(in, partial.mBody, partial.mReceived);
+        }
+        final byte[] body = partial.mBody;
+        partial.reset();
+        return body;
+    }
+
+    /**
+     * Check a Content-Range header of the form "bytes first-last/length" matches the rest of the
+     * body we asked for.
+     */
+    @VisibleForTesting
+    public static boolean isExpectedContentRange(String contentRange, int first, int length) {
+        if (contentRange == null) {
+            return false;
+        }
+        final Matcher matcher = CONTENT_RANGE_P.matcher(contentRange.trim());
+        if (!matcher.matches()) {
+            return false;
+        }
+        try {
+            return Long.parseLong(matcher.group(1)) == first
+                    && Long.parseLong(matcher.group(2)) == length - 1
+                    && ("*".equals(matcher.group(3))
+                            || Long.parseLong(matcher.group(3)) == length);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String getValidator(HttpURLConnection connection) {
+        final String etag = connection.getHeaderField(HEADER_ETAG);
+        // Weak ETags can not be used with If-Range
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        final String lastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+        return TextUtils.isEmpty(lastModified) ? null : lastModified;
+    }
+
+    /**
+     * Read a response body whose length is known from the Content-Length header.
+     *
+     * @param in the response stream
+     * @param length the announced length of the body
+     * @return the response body
+     * @throws IOException if the stream ends before the announced length
+     */
+    @VisibleForTesting
+    public static byte[] readFully(InputStream in, int length) throws IOException {
+        final byte[] body = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            offset = readFully(in, body, offset);
+        }
+        return body;
+    }
+
+    /**
+     * Read a response body whose length is announced by the server. The buffer is only allocated
+     * up front for a reasonable length, a larger body is read in bounded chunks as it arrives.
+     *
+     * @param in the response stream
+     * @param length the announced length of the body, not negative
+     * @return the response body
+     * @throws IOException if the body is too large or the stream ends before its length
+     */
+    static byte[] readBody(InputStream in, long length) throws IOException {
+        if (length <= MAX_PREALLOCATED_RESPONSE_SIZE) {
+            return readFully(in, (int) length);
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Response too large: " + length);
+        }
+        final byte[] body = readUntilEof(new FilterInputStream(in) {
+            private long mRemaining = length;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (mRemaining <= 0) {
+                    return -1;
+                }
+                final int count = super.read(b, off, (int) Math.min(len, mRemaining));
+                if (count > 0) {
+                    mRemaining -= count;
+                }
+                return count;
+            }
+        });
+        if (body.length < length) {
+            throw new IOException("Response truncated at " + body.length + " of " + length);
+        }
+        return body;
+    }
+
+    // Read once from the stream into the rest of the body, return the new offset
+    private static int readFully(InputStream in, byte[] body, int offset) throws IOException {
+        final int count = in.read(body, offset, body.length - offset);
+        if (count < 0) {
+            throw new IOException("Response truncated at " + offset + " of " + body.length);
+        }
+        return offset + count;
+    }
+
+    /**
+     * Read a response body of unknown length, e.g. chunked. The stream is read directly into a
+     * list of chunks of growing size, so that data is only copied once more when the chunks are
+     * joined, and not at all if it fits in the first one.
+     *
+     * @param in the response stream
+     * @return the response body
+     */
+    @VisibleForTesting
+    public static byte[] readUntilEof(InputStream in) throws IOException {
+        final List<byte[]> chunks = new ArrayList<>();
+        int total = 0;
+        int chunkSize = MIN_RESPONSE_CHUNK_SIZE;
+        byte[] chunk = new byte[chunkSize];
+        int offset = 0;
+        while (true) {
+            if (offset == chunk.length) {
+                chunks.add(chunk);
+                chunkSize = Math.min(chunkSize * 2, MAX_RESPONSE_CHUNK_SIZE);
+                chunk = new byte[chunkSize];
+                offset = 0;
+            }
+            final int count = in.read(chunk, offset, chunk.length - offset);
+            if (count < 0) {
                 break;
             }
+            offset += count;
+            total += count;
+        }
+        if (chunks.size() == 1 && offset == 0) {
+            // The body exactly filled the first chunk.
+            return chunks.get(0);
+        }
+        final byte[] body = new byte[total];
+        int position = 0;
+        for (byte[] full : chunks) {
+            System.arraycopy(full, 0, body, position, full.length);
+            position += full.length;
         }
+        System.arraycopy(chunk, 0, body, position, offset);
+        return body;
     }
 
-    private static void logHttpHeaders(Map<String, List<String>> headers, String requestId) {
+    static void logHttpHeaders(Map<String, List<String>> headers, String requestId) {
         final StringBuilder sb = new StringBuilder();
         if (headers != null) {
             for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
@@ -296,7 +1112,7 @@ public class MmsHttpClient {
         }
     }
 
-    private static void checkMethod(String method) throws MmsHttpException {
+    static void checkMethod(String method) throws MmsHttpException {
         if (!METHOD_GET.equals(method) && !METHOD_POST.equals(method)) {
             throw new MmsHttpException(0/*statusCode*/, "Invalid method " + method);
         }
@@ -358,16 +1174,73 @@ public class MmsHttpClient {
         }
     }
 
+    /**
+     * Build the request headers common to all the MMS requests of a carrier, whatever the
+     * transport engine.
+     *
+     * @param mmsConfig The MMS config to use
+     * @param subId     The subscription ID used to get line number, etc.
+     * @param requestId The request ID for logging
+     * @return The header values by name
+     */
+    Map<String, String> buildCommonHeaders(Bundle mmsConfig, int subId, String requestId) {
+        final Map<String, String> headers = new ArrayMap<>();
+        // ------- COMMON HEADERS ---------
+        // Header: Accept
+        headers.put(HEADER_ACCEPT, HEADER_VALUE_ACCEPT);
+        // Header: Accept-Language
+        headers.put(HEADER_ACCEPT_LANGUAGE, getCurrentAcceptLanguage(Locale.getDefault()));
+        // Header: User-Agent
+        final String userAgent = mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT);
+        LogUtil.i(requestId, "HTTP: User-Agent=" + userAgent);
+        headers.put(HEADER_USER_AGENT, userAgent);
+        // Header: x-wap-profile
+        String uaProfUrlTagName =
+                mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
+        final String uaProfUrl = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
+
+        if (!TextUtils.isEmpty(uaProfUrl)) {
+            if (TextUtils.isEmpty(uaProfUrlTagName)) {
+                uaProfUrlTagName = UA_PROF_TAG_NAME_DEFAULT;
+            }
+
+            LogUtil.i(requestId,
+                    "HTTP: UaProfUrl=" + uaProfUrl + ", UaProfUrlTagName=" + uaProfUrlTagName);
+
+            headers.put(uaProfUrlTagName, uaProfUrl);
+        }
+        // Header: Connection: close (if needed)
+        // Some carriers require that the HTTP connection's socket is closed
+        // after an MMS request/response is complete. In these cases keep alive
+        // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
+        if (mmsConfig.getBoolean(CarrierConfigManager.KEY_MMS_CLOSE_CONNECTION_BOOL, false)) {
+            LogUtil.i(requestId, "HTTP: Connection close after request");
+            headers.put(HEADER_CONNECTION, HEADER_CONNECTION_CLOSE);
+        }
+        // Add extra headers specified by mms_config.xml's httpparams
+        addExtraHeaders(headers, mmsConfig, subId);
+        return headers;
+    }
+
+    /**
+     * @return The Content-Type of the PDU of a POST
+     */
+    static String getPostContentType(Bundle mmsConfig) {
+        return mmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_HTTP_CHARSET_HEADER)
+                ? HEADER_VALUE_CONTENT_TYPE_WITH_CHARSET
+                : HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET;
+    }
+
     /**
      * Add extra HTTP headers from mms_config.xml's httpParams, which is a list of key/value
      * pairs separated by "|". Each key/value pair is separated by ":". Value may contain
      * macros like "##LINE1##" or "##NAI##" which is resolved with methods in this class
      *
-     * @param connection The HttpURLConnection that we add headers to
-     * @param mmsConfig  The MmsConfig object
-     * @param subId      The subscription ID used to get line number, etc.
+     * @param headers   The header values by name, that we add headers to
+     * @param mmsConfig The MmsConfig object
+     * @param subId     The subscription ID used to get line number, etc.
      */
-    private void addExtraHeaders(HttpURLConnection connection, Bundle mmsConfig, int subId) {
+    private void addExtraHeaders(Map<String, String> headers, Bundle mmsConfig, int subId) {
         final String extraHttpParams = mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS);
         if (!TextUtils.isEmpty(extraHttpParams)) {
             // Parse the parameter list
@@ -380,7 +1253,7 @@ public class MmsHttpClient {
                             resolveMacro(mContext, splitPair[1].trim(), mmsConfig, subId);
                     if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
                         // Add the header if the param is valid
-                        connection.setRequestProperty(name, value);
+                        headers.put(name, value);
                     }
                 }
             }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Timeouts of one MMS HTTP transfer. The carrier socket timeout bounds how long the connection may
+ * stay idle, while the connect timeout and the total deadline depend on the transport, the payload
+ * size and the throughput recently observed on the network.
+ */
+public class MmsHttpTimeouts {
+    // Connecting should never take longer than this, dead connections are abandoned quickly
+    private static final int TERRESTRIAL_CONNECT_TIMEOUT_MS = 20 * 1000;
+    private static final int SATELLITE_CONNECT_TIMEOUT_MS = 60 * 1000;
+
+    // Throughput assumed until a transfer has been measured on the network
+    @VisibleForTesting
+    public static final long DEFAULT_TERRESTRIAL_BYTES_PER_SEC = 8 * 1024;
+    @VisibleForTesting
+    public static final long DEFAULT_SATELLITE_BYTES_PER_SEC = 512;
+
+    // Margin over the expected transfer time before the transfer is abandoned
+    private static final int TRANSFER_TIME_FACTOR = 4;
+    @VisibleForTesting
+    public static final long MAX_TOTAL_TIMEOUT_MS = 15 * 60 * 1000;
+
+    // Stall detection defaults, when not set in the MMS config. Off unless the carrier sets a
+    // floor, as what is too slow depends on the network.
+    @VisibleForTesting
+    public static final int DEFAULT_STALL_MIN_BYTES_PER_SEC = 0;
+    @VisibleForTesting
+    public static final int DEFAULT_STALL_TIMEOUT_MS = 30 * 1000;
+    // Satellite links are allowed to be that many times slower before being considered stalled
+    private static final int SATELLITE_STALL_FACTOR = 4;
+
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final long mBytesPerSec;
+    private final int mStallMinBytesPerSec;
+    private final int mStallTimeoutMs;
+
+    /**
+     * Constructor
+     *
+     * @param mmsConfig            The MMS config of the request
+     * @param isSatelliteTransport Whether the network is a satellite network
+     * @param measuredBytesPerSec  The throughput recently measured on the network, or 0 if unknown
+     */
+    public MmsHttpTimeouts(Bundle mmsConfig, boolean isSatelliteTransport,
+            long measuredBytesPerSec) {
+        final int socketTimeoutMs = mmsConfig.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT);
+        if (isSatelliteTransport) {
+            // Round trips are much longer, don't give up on a merely slow connection
+            mConnectTimeoutMs = Math.max(socketTimeoutMs, SATELLITE_CONNECT_TIMEOUT_MS);
+            mReadTimeoutMs = 2 * socketTimeoutMs;
+        } else {
+            mConnectTimeoutMs = Math.min(socketTimeoutMs, TERRESTRIAL_CONNECT_TIMEOUT_MS);
+            mReadTimeoutMs = socketTimeoutMs;
+        }
+        if (measuredBytesPerSec > 0) {
+            mBytesPerSec = measuredBytesPerSec;
+        } else {
+            mBytesPerSec = isSatelliteTransport
+                    ? DEFAULT_SATELLITE_BYTES_PER_SEC : DEFAULT_TERRESTRIAL_BYTES_PER_SEC;
+        }
+        final int stallMinBytesPerSec = mmsConfig.getInt(
+                MmsConstants.MMS_CONFIG_STALL_MIN_BYTES_PER_SEC_INT,
+                DEFAULT_STALL_MIN_BYTES_PER_SEC);
+        final int stallTimeoutMs = mmsConfig.getInt(
+                MmsConstants.MMS_CONFIG_STALL_TIMEOUT_MS_INT, DEFAULT_STALL_TIMEOUT_MS);
+        if (isSatelliteTransport) {
+            mStallMinBytesPerSec = stallMinBytesPerSec / SATELLITE_STALL_FACTOR;
+            mStallTimeoutMs = stallTimeoutMs * SATELLITE_STALL_FACTOR;
+        } else {
+            mStallMinBytesPerSec = stallMinBytesPerSec;
+            mStallTimeoutMs = stallTimeoutMs;
+        }
+    }
+
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMs;
+    }
+
+    public int getReadTimeoutMillis() {
+        return mReadTimeoutMs;
+    }
+
+    /**
+     * @return The throughput below which a transfer is considered stalled, or 0 if stall
+     *         detection is disabled
+     */
+    public int getStallMinBytesPerSec() {
+        return mStallMinBytesPerSec;
+    }
+
+    /**
+     * @return How long a transfer may stay stalled before it is aborted
+     */
+    public int getStallTimeoutMillis() {
+        return mStallTimeoutMs;
+    }
+
+    /**
+     * Get the time after which the whole exchange is abandoned, even if data is still flowing.
+     *
+     * @param payloadSize The number of bytes to upload or download
+     * @return The total timeout in milliseconds
+     */
+    public long getTotalTimeoutMillis(long payloadSize) {
+        final long transferMs = Math.max(payloadSize, 0) * 1000 / mBytesPerSec;
+        // Allow for connecting and for the MMSC taking up to a read timeout to respond
+        final long totalMs = (long) mConnectTimeoutMs + mReadTimeoutMs
+                + TRANSFER_TIME_FACTOR * transferMs;
+        return Math.min(totalMs, getMaxTotalTimeoutMillis());
+    }
+
+    /**
+     * Get the time after which an exchange of unknown size, e.g. a chunked download, is
+     * abandoned. Dead transfers are caught earlier by the read timeout and the stall detection.
+     *
+     * @return The total timeout in milliseconds
+     */
+    public long getMaxTotalTimeoutMillis() {
+        return Math.max(MAX_TOTAL_TIMEOUT_MS, (long) mConnectTimeoutMs + mReadTimeoutMs);
+    }
+
+    @Override
+    public String toString() {
+        return "connect=" + mConnectTimeoutMs + "ms read=" + mReadTimeoutMs + "ms throughput="
+                + mBytesPerSec + "B/s stall=" + mStallMinBytesPerSec + "B/s for "
+                + mStallTimeoutMs + "ms";
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.telephony.TelephonyManager;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Aggregates the network phase timings of the MMS requests of a subscription per RAT, to tell
+ * whether slow MMS wait for the network, for IPv4 or for the MMSC.
+ */
+public class MmsNetworkLatencyStats {
+    private static class Entry {
+        long mRequestCount;
+        long mReusedCount;
+        long mAcquireWaitMillis;
+        long mMaxAcquireWaitMillis;
+        long mNetworkSetupMillis;
+        long mMaxNetworkSetupMillis;
+        long mSuspendedMillis;
+        long mIpv4WaitMillis;
+        long mMaxIpv4WaitMillis;
+    }
+
+    @GuardedBy("this")
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+
+    /**
+     * Add the timings of a completed request
+     *
+     * @param rat     The data network type of the request
+     * @param timings The timings of the request
+     */
+    public synchronized void record(int rat, MmsNetworkTimings timings) {
+        Entry entry = mEntries.get(rat);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(rat, entry);
+        }
+        entry.mRequestCount++;
+        if (timings.isNetworkReused()) {
+            entry.mReusedCount++;
+        }
+        entry.mAcquireWaitMillis += timings.getAcquireWaitMillis();
+        entry.mMaxAcquireWaitMillis =
+                Math.max(entry.mMaxAcquireWaitMillis, timings.getAcquireWaitMillis());
+        entry.mNetworkSetupMillis += timings.getNetworkSetupMillis();
+        entry.mMaxNetworkSetupMillis =
+                Math.max(entry.mMaxNetworkSetupMillis, timings.getNetworkSetupMillis());
+        entry.mSuspendedMillis += timings.getSuspendedMillis();
+        entry.mIpv4WaitMillis += timings.getIpv4WaitMillis();
+        entry.mMaxIpv4WaitMillis =
+                Math.max(entry.mMaxIpv4WaitMillis, timings.getIpv4WaitMillis());
+    }
+
+    /**
+     * @return The number of requests recorded for the RAT
+     */
+    public synchronized long getRequestCount(int rat) {
+        final Entry entry = mEntries.get(rat);
+        return entry == null ? 0 : entry.mRequestCount;
+    }
+
+    /**
+     * @return The average network setup time of the requests of the RAT that did not reuse a
+     *         network, or 0
+     */
+    public synchronized long getAvgNetworkSetupMillis(int rat) {
+        final Entry entry = mEntries.get(rat);
+        return entry == null ? 0 : average(entry.mNetworkSetupMillis,
+                entry.mRequestCount - entry.mReusedCount);
+    }
+
+    private static long average(long totalMillis, long count) {
+        return count <= 0 ? 0 : totalMillis / count;
+    }
+
+    /**
+     * Print the timings per RAT
+     *
+     * @param writer The writer of the dump
+     * @param prefix The prefix of the lines
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.valueAt(i);
+            writer.println(prefix + "rat=" + TelephonyManager.getNetworkTypeName(mEntries.keyAt(i))
+                    + " requests=" + entry.mRequestCount
+                    + " reused=" + entry.mReusedCount
+                    + " avgAcquire=" + average(entry.mAcquireWaitMillis, entry.mRequestCount)
+                    + "ms maxAcquire=" + entry.mMaxAcquireWaitMillis
+                    + "ms avgSetup=" + average(entry.mNetworkSetupMillis,
+                            entry.mRequestCount - entry.mReusedCount)
+                    + "ms maxSetup=" + entry.mMaxNetworkSetupMillis
+                    + "ms avgSuspended=" + average(entry.mSuspendedMillis, entry.mRequestCount)
+                    + "ms avgIpv4=" + average(entry.mIpv4WaitMillis, entry.mRequestCount)
+                    + "ms maxIpv4=" + entry.mMaxIpv4WaitMillis + "ms");
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reference counted lease of the MMS network of a subscription, as a lock-free state machine:
+ * <ul>
+ *   <li>IDLE to REQUESTING when a holder arrives, the owner requests the network</li>
+ *   <li>REQUESTING to AVAILABLE when the network is available, and back when it is lost</li>
+ *   <li>AVAILABLE to DRAINING when the last holder leaves, the network is kept for a while</li>
+ *   <li>DRAINING to AVAILABLE when a holder arrives, or to IDLE when the owner releases it</li>
+ *   <li>REQUESTING to IDLE when the last holder leaves before the network is available</li>
+ * </ul>
+ * The state and the number of holders are updated together with a single compare-and-set, so
+ * that acquiring and releasing an available network never block. The owner does the actual
+ * network request and release on the transitions reported by the methods.
+ */
+public class MmsNetworkLease {
+    /** No network and no network request */
+    public static final int STATE_IDLE = 0;
+    /** The network is requested for the holders */
+    public static final int STATE_REQUESTING = 1;
+    /** The network is available to the holders */
+    public static final int STATE_AVAILABLE = 2;
+    /** The network is kept for a while after the last holder released it */
+    public static final int STATE_DRAINING = 3;
+
+    private static final int STATE_BITS = 2;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+
+    // The number of holders, shifted by STATE_BITS, and the state
+    private final AtomicLong mValue = new AtomicLong(STATE_IDLE);
+
+    private static int stateOf(long value) {
+        return (int) (value & STATE_MASK);
+    }
+
+    private static int countOf(long value) {
+        return (int) (value >>> STATE_BITS);
+    }
+
+    private static long valueOf(int state, int count) {
+        return ((long) count << STATE_BITS) | state;
+    }
+
+    /**
+     * Take a hold on the network.
+     *
+     * @return The state before the acquisition. From {@link #STATE_IDLE}, the caller must request
+     *         the network; from {@link #STATE_DRAINING}, the kept network is reused.
+     */
+    public int acquire() {
+        while (true) {
+            final long value = mValue.get();
+            final int state = stateOf(value);
+            final int newState;
+            if (state == STATE_IDLE) {
+                newState = STATE_REQUESTING;
+            } else if (state == STATE_DRAINING) {
+                newState = STATE_AVAILABLE;
+            } else {
+                newState = state;
+            }
+            if (mValue.compareAndSet(value, valueOf(newState, countOf(value) + 1))) {
+                return state;
+            }
+        }
+    }
+
+    /**
+     * Drop a hold on the network. Unbalanced releases are ignored.
+     *
+     * @return The state after the release if the last holder left, -1 otherwise.
+     *         {@link #STATE_DRAINING} means the network should be released after a while with
+     *         {@link #finishDraining}, and {@link #STATE_IDLE} that the network request should be
+     *         released now.
+     */
+    public int release() {
+        while (true) {
+            final long value = mValue.get();
+            final int state = stateOf(value);
+            final int count = countOf(value);
+            if (count == 0) {
+                return -1;
+            }
+            int newState = state;
+            if (count == 1) {
+                if (state == STATE_AVAILABLE) {
+                    newState = STATE_DRAINING;
+                } else if (state == STATE_REQUESTING) {
+                    newState = STATE_IDLE;
+                }
+            }
+            if (mValue.compareAndSet(value, valueOf(newState, count - 1))) {
+                return count == 1 ? newState : -1;
+            }
+        }
+    }
+
+    /**
+     * End the draining, unless the network was acquired again in the meantime.
+     *
+     * @return Whether the network should be released now
+     */
+    public boolean finishDraining() {
+        return mValue.compareAndSet(valueOf(STATE_DRAINING, 0), valueOf(STATE_IDLE, 0));
+    }
+
+    /**
+     * Called when the requested network becomes available.
+     */
+    public void onAvailable() {
+        transition(STATE_REQUESTING, STATE_AVAILABLE);
+    }
+
+    /**
+     * Called when the available network is lost, while the network request is kept.
+     */
+    public void onLost() {
+        transition(STATE_AVAILABLE, STATE_REQUESTING);
+    }
+
+    /**
+     * Called when a holder waits for the network, which may have been lost or whose request may
+     * have been released while the holder was arriving.
+     */
+    public void onRequesting() {
+        if (!transition(STATE_AVAILABLE, STATE_REQUESTING)) {
+            transition(STATE_IDLE, STATE_REQUESTING);
+        }
+    }
+
+    /**
+     * Called when the network request is released without a release of the holders, e.g. when it
+     * failed. The holders still have to release their hold.
+     */
+    public void onRequestReleased() {
+        while (true) {
+            final long value = mValue.get();
+            if (mValue.compareAndSet(value, valueOf(STATE_IDLE, countOf(value)))) {
+                return;
+            }
+        }
+    }
+
+    private boolean transition(int fromState, int toState) {
+        while (true) {
+            final long value = mValue.get();
+            if (stateOf(value) != fromState) {
+                return false;
+            }
+            if (mValue.compareAndSet(value, valueOf(toState, countOf(value)))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The current state
+     */
+    public int getState() {
+        return stateOf(mValue.get());
+    }
+
+    /**
+     * @return The current number of holders
+     */
+    public int getHolderCount() {
+        return countOf(mValue.get());
+    }
+
+    @Override
+    public String toString() {
+        final long value = mValue.get();
+        return "state=" + stateOf(value) + " holders=" + countOf(value);
+    }
+}
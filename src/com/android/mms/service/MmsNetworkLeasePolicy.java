@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Decides how long the MMS network of a subscription is kept after its last request, from the
+ * idle gaps seen between previous bursts of MMS traffic.
+ *
+ * Holding the network for T ms after a release turns every following gap shorter than T into a
+ * hit, which saves a network setup, and costs min(gap, T) ms of radio time either way. The hold
+ * duration is the T maximizing the saved setups, weighed by {@link #SETUP_COST_MILLIS}, minus the
+ * radio time over the recent gaps.
+ */
+public class MmsNetworkLeasePolicy {
+    // The number of recent idle gaps the hold duration is learned from
+    @VisibleForTesting
+    static final int MAX_SAMPLES = 16;
+    // Below this number of gaps, the carrier configured hold duration is used as is
+    @VisibleForTesting
+    static final int MIN_SAMPLES = 4;
+    // The cost of setting up the network, in ms of holding it. Covers the radio power of the
+    // setup signaling and the latency added to the request.
+    @VisibleForTesting
+    static final long SETUP_COST_MILLIS = 10 * 1000;
+    // The network is never held longer than this for a predicted request
+    @VisibleForTesting
+    static final long MAX_HOLD_MILLIS = 2 * 60 * 1000;
+    // Added to a predicted gap so that the request arriving on time is still a hit
+    private static final long HOLD_MARGIN_MILLIS = 1000;
+
+    // Ring buffer of the recent idle gaps
+    @GuardedBy("this")
+    private final long[] mGapsMillis = new long[MAX_SAMPLES];
+    @GuardedBy("this")
+    private int mSampleCount;
+    @GuardedBy("this")
+    private int mNextSample;
+    // When the last request released the network, or -1 while requests are active
+    @GuardedBy("this")
+    private long mIdleSinceMillis = -1;
+    // Requests finding the network kept by the lease
+    @GuardedBy("this")
+    private int mHitCount;
+    // Requests arriving within MAX_HOLD_MILLIS that had to set up the network again
+    @GuardedBy("this")
+    private int mMissCount;
+
+    /**
+     * Called when a request acquires the network while no other request holds it.
+     *
+     * @param nowMillis   The current elapsed realtime
+     * @param networkKept Whether the network was still kept from the previous requests
+     */
+    public synchronized void onBusy(long nowMillis, boolean networkKept) {
+        if (mIdleSinceMillis < 0) {
+            return;
+        }
+        final long gapMillis = nowMillis - mIdleSinceMillis;
+        mIdleSinceMillis = -1;
+        if (gapMillis < 0) {
+            return;
+        }
+        mGapsMillis[mNextSample] = gapMillis;
+        mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+        mSampleCount = Math.min(mSampleCount + 1, MAX_SAMPLES);
+        if (networkKept) {
+            mHitCount++;
+        } else if (gapMillis <= MAX_HOLD_MILLIS) {
+            mMissCount++;
+        }
+    }
+
+    /**
+     * Called when the last request releases the network.
+     *
+     * @param nowMillis     The current elapsed realtime
+     * @param minHoldMillis The hold duration required by the caller, 0 if none
+     * @return How long to keep the network before releasing it, 0 to release it now
+     */
+    public synchronized long onIdle(long nowMillis, long minHoldMillis) {
+        mIdleSinceMillis = nowMillis;
+        return Math.max(getPredictedHoldMillisLocked(), minHoldMillis);
+    }
+
+    @GuardedBy("this")
+    private long getPredictedHoldMillisLocked() {
+        if (mSampleCount < MIN_SAMPLES) {
+            return 0;
+        }
+        final long[] gaps = Arrays.copyOf(mGapsMillis, mSampleCount);
+        Arrays.sort(gaps);
+        // Not holding at all scores 0. Since the gaps are sorted, holding just long enough to
+        // cover gaps[i] makes the first i + 1 gaps hits and costs the sum of min(gap, hold).
+        long bestHoldMillis = 0;
+        long bestScore = 0;
+        long coveredMillis = 0;
+        for (int i = 0; i < gaps.length; i++) {
+            final long holdMillis = gaps[i] + HOLD_MARGIN_MILLIS;
+            if (holdMillis > MAX_HOLD_MILLIS) {
+                break;
+            }
+            coveredMillis += gaps[i];
+            final long score = (i + 1) * SETUP_COST_MILLIS - coveredMillis
+                    - (gaps.length - i - 1) * holdMillis;
+            if (score > bestScore) {
+                bestScore = score;
+                bestHoldMillis = holdMillis;
+            }
+        }
+        return bestHoldMillis;
+    }
+
+    /**
+     * @return The number of requests that found the network kept for them
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return The number of requests that had to set up the network again within
+     *         {@link #MAX_HOLD_MILLIS} of the previous release
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The ratio of hits over hits and misses, 0 if there were none
+     */
+    public synchronized float getHitRate() {
+        final int total = mHitCount + mMissCount;
+        return total == 0 ? 0f : (float) mHitCount / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + mHitCount + " misses=" + mMissCount + " hitRate=" + getHitRate()
+                + " samples=" + mSampleCount + " hold=" + getPredictedHoldMillisLocked() + "ms";
+    }
+}
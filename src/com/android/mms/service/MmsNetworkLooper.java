@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * The looper of the MMS network and carrier config events, so that they don't share the main
+ * thread of the phone process with telephony. Tracks how late and how long its messages run.
+ */
+public class MmsNetworkLooper {
+    // Messages dispatched or handled slower than this are logged
+    private static final long SLOW_DISPATCH_MILLIS = 100;
+
+    private static final MmsNetworkLooper sInstance = new MmsNetworkLooper();
+
+    private final HandlerThread mThread;
+
+    @GuardedBy("this")
+    private long mMessageCount;
+    // Time between the due time of the messages and their dispatch
+    @GuardedBy("this")
+    private long mTotalLatencyMillis;
+    @GuardedBy("this")
+    private long mMaxLatencyMillis;
+    // Time spent handling the messages
+    @GuardedBy("this")
+    private long mMaxHandlingMillis;
+    @GuardedBy("this")
+    private long mSlowMessageCount;
+
+    private MmsNetworkLooper() {
+        mThread = new HandlerThread("MmsNetworkLooper");
+        mThread.start();
+    }
+
+    /**
+     * Get the singleton instance of MmsNetworkLooper
+     * @return the instance
+     */
+    public static MmsNetworkLooper getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return The looper of the MMS network events
+     */
+    public Looper getLooper() {
+        return mThread.getLooper();
+    }
+
+    private synchronized void record(long latencyMillis, long handlingMillis, Message msg) {
+        mMessageCount++;
+        mTotalLatencyMillis += latencyMillis;
+        mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latencyMillis);
+        mMaxHandlingMillis = Math.max(mMaxHandlingMillis, handlingMillis);
+        if (latencyMillis > SLOW_DISPATCH_MILLIS || handlingMillis > SLOW_DISPATCH_MILLIS) {
+            mSlowMessageCount++;
+            LogUtil.w("MmsNetworkLooper: slow message " + msg + ", latency=" + latencyMillis
+                    + "ms, handling=" + handlingMillis + "ms");
+        }
+    }
+
+    /**
+     * Print the latency of the looper
+     *
+     * @param writer The writer of the dump
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("MMS network looper: messages=" + mMessageCount
+                + " avgLatency=" + (mMessageCount == 0 ? 0 : mTotalLatencyMillis / mMessageCount)
+                + "ms maxLatency=" + mMaxLatencyMillis + "ms maxHandling=" + mMaxHandlingMillis
+                + "ms slow=" + mSlowMessageCount);
+    }
+
+    /**
+     * Handler on the MMS network looper, recording the latency of its messages
+     */
+    public static class TrackedHandler extends Handler {
+        public TrackedHandler() {
+            super(getInstance().getLooper());
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            // The looper recycles the message only once this returns
+            final long startMillis = SystemClock.uptimeMillis();
+            final long latencyMillis = Math.max(0, startMillis - msg.getWhen());
+            super.dispatchMessage(msg);
+            getInstance().record(latencyMillis, SystemClock.uptimeMillis() - startMillis, msg);
+        }
+    }
+}
@@ -22,25 +22,36 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkRequest;
 import android.net.TelephonyNetworkSpecifier;
+import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.provider.DeviceConfig;
 import android.telephony.CarrierConfigManager;
+import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.flags.Flags;
 import com.android.mms.service.exception.MmsNetworkException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
 /**
  * Manages the MMS network connectivity
  */
@@ -53,10 +64,27 @@ public class MmsNetworkManager {
     // Given that the telephony layer will retry on failures, this timeout should be high enough.
     private static final int DEFAULT_MMS_SERVICE_NETWORK_REQUEST_TIMEOUT_MILLIS = 30 * 60 * 1000;
 
+    private static final String MMS_SERVICE_TERRESTRIAL_NETWORK_REQUEST_TIMEOUT_MILLIS =
+            "mms_service_terrestrial_network_request_timeout_millis";
+    // Default timeout of the terrestrial network request of a message too large for satellite.
+    // The request is waiting with the message, so it fails soon if no terrestrial network shows up.
+    private static final int DEFAULT_MMS_SERVICE_TERRESTRIAL_NETWORK_REQUEST_TIMEOUT_MILLIS =
+            60 * 1000;
+
     // Wait timeout for this class, this is an additional delay after waiting the network request
     // timeout to make sure we don't bail prematurely.
     private static final int ADDITIONAL_NETWORK_ACQUIRE_TIMEOUT_MILLIS = (5 * 1000);
 
+    // A failed network request is replaced for the waiting acquisitions only if the new request
+    // can last at least this long.
+    private static final int MIN_NETWORK_REQUEST_RETRY_TIMEOUT_MILLIS = 10 * 1000;
+    // Delay before the first new request after a failed one, doubled for each following one, so
+    // that a request rejected right away doesn't turn into a loop of binder calls.
+    private static final int NETWORK_REQUEST_RETRY_DELAY_MILLIS = 2 * 1000;
+    // Maximum number of new requests after failed ones, until a network is available
+    @VisibleForTesting
+    public static final int MAX_NETWORK_REQUEST_RETRIES = 3;
+
     /* Event created when receiving ACTION_CARRIER_CONFIG_CHANGED */
     private static final int EVENT_CARRIER_CONFIG_CHANGED = 1;
 
@@ -65,19 +93,48 @@ public class MmsNetworkManager {
     // The requested MMS {@link android.net.Network} we are holding
     // We need this when we unbind from it. This is also used to indicate if the
     // MMS network is available.
-    private Network mNetwork;
-    // The current count of MMS requests that require the MMS network
-    // If mMmsRequestCount is 0, we should release the MMS network.
-    private int mMmsRequestCount;
+    private volatile Network mNetwork;
+    // The MMS requests holding the MMS network, and the state of the network
+    private final MmsNetworkLease mLease = new MmsNetworkLease();
+    // The acquisitions waiting for the MMS network, completed with its net Id, and their
+    // deadlines in elapsed realtime
+    private final ArrayMap<CompletableFuture<Integer>, Long> mPendingAcquires = new ArrayMap<>();
     // This is really just for using the capability
     private final NetworkRequest mNetworkRequest;
+    // The request for a terrestrial MMS network, only when satellite MMS networks are supported
+    private final NetworkRequest mTerrestrialNetworkRequest;
+    // The terrestrial MMS network held instead of a satellite one by the requests too large for
+    // satellite, its callback while requested, and the number of requests holding it
+    private Network mTerrestrialNetwork;
+    private ConnectivityManager.NetworkCallback mTerrestrialNetworkCallback;
+    private MmsHttpClient mTerrestrialHttpClient;
+    private int mTerrestrialHolderCount;
+    // The number of MMS requests running on this manager, from queued to finished
+    private int mRunningRequestCount;
+    // The acquisitions waiting for the terrestrial MMS network
+    private final List<CompletableFuture<Integer>> mPendingTerrestrialAcquires =
+            new ArrayList<>();
     // The callback to register when we request MMS network
     private ConnectivityManager.NetworkCallback mNetworkCallback;
+    // The number of new requests after failed ones since a network was last available
+    private int mNetworkRequestRetryCount;
+    // Whether a new request is due after a failed one, mNetworkCallback is null meanwhile
+    private boolean mNetworkRequestRetryPending;
+    // The task starting the new request after a failed one
+    private final Runnable mNetworkRequestRetryTask = this::onNetworkRequestRetry;
 
     private volatile ConnectivityManager mConnectivityManager;
 
     // The MMS HTTP client for this network
     private MmsHttpClient mMmsHttpClient;
+    // The nio transport engine for this network, for the carriers selecting it
+    private NioMmsTransport mNioTransport;
+
+    // The host name resolution cache for this network
+    private MmsDnsCache mDnsCache;
+
+    // The host names resolved on previous networks, used to prewarm the cache of a new network
+    private final Set<String> mRecentHosts = new ArraySet<>();
 
     // The handler used for delayed release of the network
     private final Handler mReleaseHandler;
@@ -96,17 +153,32 @@ public class MmsNetworkManager {
 
     private final Dependencies mDeps;
 
-    private int mNetworkReleaseTimeoutMillis;
+    private volatile int mNetworkReleaseTimeoutMillis;
+
+    // The MMS data connections of the subscription, shared by its requests
+    private final MmsDataConnectionMonitor mDataConnectionMonitor;
+
+    // Learns how long to keep the network after the last request from the traffic pattern
+    private final MmsNetworkLeasePolicy mLeasePolicy = new MmsNetworkLeasePolicy();
+
+    // The network phase timings of the requests of the subscription
+    private final MmsNetworkLatencyStats mLatencyStats = new MmsNetworkLatencyStats();
+    // Elapsed realtime of the current network request until its network is available, or 0
+    private long mNetworkRequestStartMillis;
+    // Time from the network request of the available network to the network being available, 0
+    // if it became available again after a suspension
+    private long mNetworkSetupMillis;
+    // Elapsed realtime since the network is suspended or lost while requested, or 0
+    private long mSuspendedSinceMillis;
+    // Total time of the past suspended periods
+    private long mSuspendedMillis;
 
     // satellite transport status of associated mms active network
     private boolean  mIsSatelliteTransport;
 
     private EventHandler mEventHandler;
 
-    private final class EventHandler extends Handler {
-        EventHandler() {
-            super(Looper.getMainLooper());
-        }
+    private final class EventHandler extends MmsNetworkLooper.TrackedHandler {
 
         /**
          * Handles events coming from the phone stack. Overridden from handler.
@@ -150,7 +222,6 @@ public class MmsNetworkManager {
                     if (mPhoneId == phoneId && simState == TelephonyManager.SIM_STATE_ABSENT) {
                         synchronized (MmsNetworkManager.this) {
                             releaseRequestLocked(mNetworkCallback);
-                            MmsNetworkManager.this.notifyAll();
                         }
                     }
                 }
@@ -214,7 +285,21 @@ public class MmsNetworkManager {
                 // Wait for other available network. Not notify.
                 if (network.equals(mNetwork)) {
                     mNetwork = null;
-                    mMmsHttpClient = null;
+                    mSuspendedSinceMillis = SystemClock.elapsedRealtime();
+                    mLease.onLost();
+                    clearHttpClientLocked();
+                    clearDnsCacheLocked();
+                }
+            }
+        }
+
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties lp) {
+            super.onLinkPropertiesChanged(network, lp);
+            synchronized (MmsNetworkManager.this) {
+                // Push the update to the client so requests waiting for IPv4 wake up right away.
+                if (network.equals(mNetwork) && mMmsHttpClient != null) {
+                    mMmsHttpClient.onLinkPropertiesChanged(lp);
                 }
             }
         }
@@ -224,8 +309,13 @@ public class MmsNetworkManager {
             super.onUnavailable();
             LogUtil.w("NetworkCallbackListener.onUnavailable");
             synchronized (MmsNetworkManager.this) {
-                releaseRequestLocked(this);
-                MmsNetworkManager.this.notifyAll();
+                if (this != mNetworkCallback) {
+                    // Already replaced by a new request
+                    return;
+                }
+                if (!retryNetworkRequestLocked()) {
+                    releaseRequestLocked(this);
+                }
             }
         }
 
@@ -242,7 +332,10 @@ public class MmsNetworkManager {
                 if (network.equals(mNetwork) && !isAvailable) {
                     // Current network becomes suspended.
                     mNetwork = null;
-                    mMmsHttpClient = null;
+                    mSuspendedSinceMillis = SystemClock.elapsedRealtime();
+                    mLease.onLost();
+                    clearHttpClientLocked();
+                    clearDnsCacheLocked();
                     // Not notify. Either wait for other available network or current network to
                     // become available again.
                     return;
@@ -250,10 +343,59 @@ public class MmsNetworkManager {
 
                 // New available network
                 if (mNetwork == null && isAvailable) {
-                    mIsSatelliteTransport = Flags.satelliteInternet()
+                    mIsSatelliteTransport = mDeps.isSatelliteInternetEnabled()
                             && nc.hasTransport(NetworkCapabilities.TRANSPORT_SATELLITE);
                     mNetwork = network;
-                    MmsNetworkManager.this.notifyAll();
+                    mNetworkRequestRetryCount = 0;
+                    onNetworkAvailableLocked();
+                    mLease.onAvailable();
+                    // The requests resolve the MMSC and proxy used before once they acquired it
+                    mDnsCache = new MmsDnsCache(network.getPrivateDnsBypassingCopy(),
+                            mRecentHosts);
+                    completePendingAcquiresLocked(network.getNetId(), null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Network callback for the terrestrial network requested next to a satellite one
+     */
+    private class TerrestrialNetworkCallback extends ConnectivityManager.NetworkCallback {
+        @Override
+        public void onLost(Network network) {
+            super.onLost(network);
+            LogUtil.w("TerrestrialNetworkCallback.onLost: network=" + network);
+            synchronized (MmsNetworkManager.this) {
+                if (network.equals(mTerrestrialNetwork)) {
+                    clearTerrestrialNetworkLocked();
+                }
+            }
+        }
+
+        @Override
+        public void onUnavailable() {
+            super.onUnavailable();
+            LogUtil.w("TerrestrialNetworkCallback.onUnavailable");
+            synchronized (MmsNetworkManager.this) {
+                if (this == mTerrestrialNetworkCallback) {
+                    releaseTerrestrialRequestLocked();
+                }
+            }
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities nc) {
+            super.onCapabilitiesChanged(network, nc);
+            synchronized (MmsNetworkManager.this) {
+                final boolean isAvailable =
+                        nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_SUSPENDED);
+                if (network.equals(mTerrestrialNetwork) && !isAvailable) {
+                    clearTerrestrialNetworkLocked();
+                } else if (mTerrestrialNetwork == null && isAvailable) {
+                    LogUtil.i("TerrestrialNetworkCallback: available network=" + network);
+                    mTerrestrialNetwork = network;
+                    completePendingTerrestrialAcquiresLocked(network.getNetId(), null);
                 }
             }
         }
@@ -277,9 +419,33 @@ public class MmsNetworkManager {
                     DEFAULT_MMS_SERVICE_NETWORK_REQUEST_TIMEOUT_MILLIS);
         }
 
+        // Timeout used to request the terrestrial network, while a message waits for it
+        public int getTerrestrialNetworkRequestTimeoutMillis() {
+            return DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                    MMS_SERVICE_TERRESTRIAL_NETWORK_REQUEST_TIMEOUT_MILLIS,
+                    DEFAULT_MMS_SERVICE_TERRESTRIAL_NETWORK_REQUEST_TIMEOUT_MILLIS);
+        }
+
         public int getAdditionalNetworkAcquireTimeoutMillis() {
             return ADDITIONAL_NETWORK_ACQUIRE_TIMEOUT_MILLIS;
         }
+
+        // Delay before the first new request after a failed one
+        public int getNetworkRequestRetryDelayMillis() {
+            return NETWORK_REQUEST_RETRY_DELAY_MILLIS;
+        }
+
+        /** Whether MMS may use a satellite network */
+        public boolean isSatelliteInternetEnabled() {
+            return Flags.satelliteInternet();
+        }
+
+        /** Whether the subscription is camped on a satellite, with no terrestrial network */
+        public boolean isUsingNonTerrestrialNetwork(Context context, int subId) {
+            final ServiceState serviceState = context.getSystemService(TelephonyManager.class)
+                    .createForSubscriptionId(subId).getServiceState();
+            return serviceState != null && serviceState.isUsingNonTerrestrialNetwork();
+        }
     }
 
     @VisibleForTesting
@@ -288,11 +454,11 @@ public class MmsNetworkManager {
         mDeps = dependencies;
         mNetworkCallback = null;
         mNetwork = null;
-        mMmsRequestCount = 0;
         mConnectivityManager = null;
         mMmsHttpClient = null;
         mSubId = subId;
-        mReleaseHandler = new Handler(Looper.getMainLooper());
+        mDataConnectionMonitor = new MmsDataConnectionMonitor(context, subId);
+        mReleaseHandler = new MmsNetworkLooper.TrackedHandler();
 
         NetworkRequest.Builder builder = new NetworkRequest.Builder()
                 .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
@@ -302,7 +468,9 @@ public class MmsNetworkManager {
 
         // With Satellite internet support, add satellite transport with restricted capability to
         // support mms over satellite network
-        if (Flags.satelliteInternet()) {
+        if (mDeps.isSatelliteInternetEnabled()) {
+            // Built before the satellite changes, build() copies the capabilities
+            mTerrestrialNetworkRequest = builder.build();
             builder.removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED);
             try {
                 // TODO: b/331622062 remove the try/catch
@@ -312,14 +480,17 @@ public class MmsNetworkManager {
             } catch (IllegalArgumentException exception) {
                 LogUtil.e("TRANSPORT_SATELLITE or NOT_BANDWIDTH_CONSTRAINED is not supported.");
             }
+        } else {
+            mTerrestrialNetworkRequest = null;
         }
         mNetworkRequest = builder.build();
 
         mNetworkReleaseTask = new Runnable() {
             @Override
             public void run() {
-                synchronized (this) {
-                    if (mMmsRequestCount < 1) {
+                synchronized (MmsNetworkManager.this) {
+                    // Unless a request took the network again meanwhile
+                    if (mLease.finishDraining()) {
                         releaseRequestLocked(mNetworkCallback);
                     }
                 }
@@ -330,7 +501,8 @@ public class MmsNetworkManager {
         // Register a receiver to listen to ACTION_CARRIER_CONFIG_CHANGED
         mContext.registerReceiver(
                 mCarrierConfigChangedReceiver,
-                new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+                new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED),
+                null /* broadcastPermission */, mEventHandler);
         handleCarrierConfigChanged();
     }
 
@@ -339,77 +511,467 @@ public class MmsNetworkManager {
     }
 
     /**
-     * Acquire the MMS network
+     * Release the network and unregister everything held for the subscription, once it is no
+     * longer active. The manager must not be used afterwards.
+     */
+    public void dispose() {
+        mContext.unregisterReceiver(mCarrierConfigChangedReceiver);
+        mEventHandler.removeCallbacksAndMessages(null);
+        mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
+        mDataConnectionMonitor.stop();
+        synchronized (this) {
+            releaseRequestLocked(mNetworkCallback);
+            releaseTerrestrialRequestLocked();
+        }
+    }
+
+    /**
+     * Called when a request starts running on this manager, including while it is queued
+     */
+    public synchronized void onRequestStarted() {
+        mRunningRequestCount++;
+    }
+
+    /**
+     * Called when a request running on this manager finishes
+     */
+    public synchronized void onRequestFinished() {
+        if (mRunningRequestCount > 0) {
+            mRunningRequestCount--;
+        }
+    }
+
+    /**
+     * @return Whether requests are running on this manager, or hold or wait for the network.
+     *         Requests don't hold the network before acquiring it or between their attempts.
+     */
+    public synchronized boolean isInUse() {
+        return mRunningRequestCount > 0 || mLease.getHolderCount() > 0
+                || mTerrestrialHolderCount > 0;
+    }
+
+    /**
+     * Acquire the MMS network, blocking until it is available
      *
      * @param requestId request ID for logging
      * @throws com.android.mms.service.exception.MmsNetworkException if we fail to acquire it
      * @return The net Id of the acquired network.
      */
     public int acquireNetwork(final String requestId) throws MmsNetworkException {
-        int networkRequestTimeoutMillis = mDeps.getNetworkRequestTimeoutMillis();
+        return waitForNetwork(requestId, acquireNetworkAsync(requestId));
+    }
+
+    /**
+     * Acquire the MMS network, blocking until it is available, and record the timings of the
+     * acquisition
+     *
+     * @param requestId request ID for logging
+     * @param timings   The timings of the request
+     * @throws com.android.mms.service.exception.MmsNetworkException if we fail to acquire it
+     * @return The net Id of the acquired network.
+     */
+    public int acquireNetwork(final String requestId, final MmsNetworkTimings timings)
+            throws MmsNetworkException {
+        final long startMillis = SystemClock.elapsedRealtime();
+        timings.onAcquireStarted(getSuspendedMillis());
+        // The setup of the network this acquisition waited for, none if it failed
+        long setupMillis = 0;
+        int netId;
+        MmsDnsCache dnsCache;
+        try {
+            netId = waitForNetwork(requestId, acquireNetworkAsync(requestId, timings));
+            synchronized (this) {
+                setupMillis = mNetworkSetupMillis;
+                dnsCache = mDnsCache;
+            }
+        } finally {
+            timings.onAcquireFinished(SystemClock.elapsedRealtime() - startMillis, setupMillis);
+        }
+        if (dnsCache != null) {
+            dnsCache.prewarm();
+        }
+        return netId;
+    }
+
+    /**
+     * Acquire the MMS network without blocking, for tests of concurrent acquisitions. The
+     * acquisition holds the network like {@link #acquireNetwork}, and must be released with
+     * {@link #releaseNetwork} even if it fails.
+     *
+     * @param requestId request ID for logging
+     * @return A future completed with the net Id of the acquired network, or exceptionally with
+     *         an {@link MmsNetworkException} if we fail to acquire it
+     */
+    @VisibleForTesting
+    CompletableFuture<Integer> acquireNetworkAsync(final String requestId) {
+        return acquireNetworkAsync(requestId, null);
+    }
 
+    private CompletableFuture<Integer> acquireNetworkAsync(final String requestId,
+            final MmsNetworkTimings timings) {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        // A kept network is taken back from the pending release task, which then does nothing.
+        final int previousState = mLease.acquire();
+        if (previousState == MmsNetworkLease.STATE_IDLE
+                || previousState == MmsNetworkLease.STATE_DRAINING) {
+            mLeasePolicy.onBusy(SystemClock.elapsedRealtime(),
+                    previousState == MmsNetworkLease.STATE_DRAINING);
+        }
+        final Network network = mNetwork;
+        if (network != null && (previousState == MmsNetworkLease.STATE_AVAILABLE
+                || previousState == MmsNetworkLease.STATE_DRAINING)) {
+            // Already available
+            LogUtil.d(requestId, "MmsNetworkManager: already available");
+            if (timings != null) {
+                timings.setNetworkReused(true);
+            }
+            future.complete(network.getNetId());
+            return future;
+        }
+
+        final int networkRequestTimeoutMillis = mDeps.getNetworkRequestTimeoutMillis();
         synchronized (this) {
-            // Since we are acquiring the network, remove the network release task if exists.
-            mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
-            mMmsRequestCount += 1;
+            if (timings != null) {
+                timings.setNetworkReused(mNetwork != null);
+            }
             if (mNetwork != null) {
-                // Already available
-                LogUtil.d(requestId, "MmsNetworkManager: already available");
-                return mNetwork.getNetId();
+                // Became available meanwhile
+                future.complete(mNetwork.getNetId());
+                return future;
             }
+            mLease.onRequesting();
 
             if (!mSimCardStateChangedReceiverRegistered) {
                 mPhoneId = mDeps.getPhoneId(mSubId);
                 if (mPhoneId == SubscriptionManager.INVALID_PHONE_INDEX
                         || mPhoneId == SubscriptionManager.DEFAULT_PHONE_INDEX) {
-                    throw new MmsNetworkException("Invalid Phone Id: " + mPhoneId);
+                    future.completeExceptionally(
+                            new MmsNetworkException("Invalid Phone Id: " + mPhoneId));
+                    return future;
                 }
 
                 // Register a receiver to listen to ACTION_SIM_CARD_STATE_CHANGED
                 mContext.registerReceiver(
                         mSimCardStateChangedReceiver,
-                        new IntentFilter(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED));
+                        new IntentFilter(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED),
+                        null /* broadcastPermission */, mEventHandler);
                 mSimCardStateChangedReceiverRegistered = true;
             }
 
-            // Not available, so start a new request if not done yet
-            if (mNetworkCallback == null) {
+            // Not available, so start a new request if not done yet, or due after a failed one
+            if (mNetworkCallback == null && !mNetworkRequestRetryPending) {
                 LogUtil.d(requestId, "MmsNetworkManager: start new network request");
                 startNewNetworkRequestLocked(networkRequestTimeoutMillis);
             }
+            mPendingAcquires.put(future, SystemClock.elapsedRealtime()
+                    + networkRequestTimeoutMillis
+                    + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
+        }
 
-            try {
-                this.wait(networkRequestTimeoutMillis
-                        + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
-            } catch (InterruptedException e) {
-                LogUtil.w(requestId, "MmsNetworkManager: acquire network wait interrupted");
+        final Runnable timeoutTask =
+                () -> onAcquireTimeout(requestId, future, networkRequestTimeoutMillis);
+        mEventHandler.postDelayed(timeoutTask,
+                networkRequestTimeoutMillis + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
+        future.whenComplete((netId, e) -> mEventHandler.removeCallbacks(timeoutTask));
+        return future;
+    }
+
+    /**
+     * Record how long the network took to be available, after a new request or a suspension
+     */
+    private void onNetworkAvailableLocked() {
+        final long nowMillis = SystemClock.elapsedRealtime();
+        mNetworkSetupMillis = 0;
+        if (mNetworkRequestStartMillis != 0) {
+            mNetworkSetupMillis = nowMillis - mNetworkRequestStartMillis;
+            mNetworkRequestStartMillis = 0;
+            LogUtil.i("MmsNetworkManager: network available after " + mNetworkSetupMillis
+                    + "ms");
+        }
+        endSuspendedPeriodLocked(nowMillis);
+    }
+
+    private void endSuspendedPeriodLocked(long nowMillis) {
+        if (mSuspendedSinceMillis != 0) {
+            final long suspendedMillis = nowMillis - mSuspendedSinceMillis;
+            mSuspendedMillis += suspendedMillis;
+            mSuspendedSinceMillis = 0;
+            LogUtil.i("MmsNetworkManager: network was suspended for " + suspendedMillis + "ms");
+        }
+    }
+
+    /**
+     * @return The total time the network was suspended or lost while requested, including the
+     *         current suspension
+     */
+    public synchronized long getSuspendedMillis() {
+        return mSuspendedMillis + (mSuspendedSinceMillis == 0
+                ? 0 : SystemClock.elapsedRealtime() - mSuspendedSinceMillis);
+    }
+
+    private void onAcquireTimeout(String requestId, CompletableFuture<Integer> future,
+            int networkRequestTimeoutMillis) {
+        synchronized (this) {
+            if (mPendingAcquires.remove(future) == null) {
+                return;
+            }
+            LogUtil.e(requestId,
+                    "MmsNetworkManager: timed out with networkRequestTimeoutMillis="
+                            + networkRequestTimeoutMillis
+                            + " and ADDITIONAL_NETWORK_ACQUIRE_TIMEOUT_MILLIS="
+                            + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
+            future.completeExceptionally(new MmsNetworkException("Acquiring network failed"));
+            // The other acquisitions keep waiting with their own deadline
+            if (mPendingAcquires.isEmpty()) {
+                releaseRequestLocked(mNetworkCallback);
             }
+        }
+    }
 
-            if (mSimCardStateChangedReceiverRegistered) {
-                // Unregister the receiver.
-                mContext.unregisterReceiver(mSimCardStateChangedReceiver);
-                mSimCardStateChangedReceiverRegistered = false;
+    /**
+     * Replace the failed network request with a new one after a backoff delay, for the
+     * acquisitions that still have time left then, failing the others.
+     *
+     * @return Whether a new network request is due
+     */
+    private boolean retryNetworkRequestLocked() {
+        if (mNetworkRequestRetryCount >= MAX_NETWORK_REQUEST_RETRIES) {
+            LogUtil.w("MmsNetworkManager: network request failed after "
+                    + mNetworkRequestRetryCount + " retries");
+            return false;
+        }
+        final long delayMillis =
+                (long) mDeps.getNetworkRequestRetryDelayMillis() << mNetworkRequestRetryCount;
+        if (expirePendingAcquiresLocked(delayMillis) == 0) {
+            return false;
+        }
+
+        mNetworkRequestRetryCount++;
+        LogUtil.i("MmsNetworkManager: request network again in " + delayMillis + "ms for "
+                + mPendingAcquires.size() + " waiting requests, retry "
+                + mNetworkRequestRetryCount);
+        unregisterNetworkCallbackLocked(mNetworkCallback);
+        mNetworkCallback = null;
+        mNetworkRequestRetryPending = true;
+        mEventHandler.postDelayed(mNetworkRequestRetryTask, delayMillis);
+        return true;
+    }
+
+    /**
+     * Start the network request due after a failed one, unless nobody waits for it anymore.
+     */
+    private void onNetworkRequestRetry() {
+        synchronized (this) {
+            if (!mNetworkRequestRetryPending) {
+                return;
+            }
+            mNetworkRequestRetryPending = false;
+            final long retryTimeoutMillis = expirePendingAcquiresLocked(0);
+            if (retryTimeoutMillis == 0) {
+                releaseRequestLocked(null);
+                return;
             }
+            startNewNetworkRequestLocked((int) retryTimeoutMillis);
+        }
+    }
 
-            if (mNetwork != null) {
-                // Success
-                return mNetwork.getNetId();
-            }
-
-            if (mNetworkCallback != null) { // Timed out
-                LogUtil.e(requestId,
-                        "MmsNetworkManager: timed out with networkRequestTimeoutMillis="
-                                + networkRequestTimeoutMillis
-                                + " and ADDITIONAL_NETWORK_ACQUIRE_TIMEOUT_MILLIS="
-                                + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
-                // Release the network request and wake up all the MmsRequests for fast-fail
-                // together.
-                // TODO: Start new network request for remaining MmsRequests?
-                releaseRequestLocked(mNetworkCallback);
-                this.notifyAll();
+    /**
+     * Fail the acquisitions without enough time left for a network request started after a
+     * delay.
+     *
+     * @param delayMillis The delay before the network request
+     * @return The timeout of the network request for the acquisitions left, 0 if none
+     */
+    private long expirePendingAcquiresLocked(long delayMillis) {
+        final long startMillis = SystemClock.elapsedRealtime() + delayMillis;
+        final int additionalMillis = mDeps.getAdditionalNetworkAcquireTimeoutMillis();
+        final List<CompletableFuture<Integer>> expiredAcquires = new ArrayList<>();
+        long retryTimeoutMillis = 0;
+        for (int i = mPendingAcquires.size() - 1; i >= 0; i--) {
+            // Leave the additional time of the acquisition to the new request to report back
+            final long timeoutMillis =
+                    mPendingAcquires.valueAt(i) - startMillis - additionalMillis;
+            if (timeoutMillis < MIN_NETWORK_REQUEST_RETRY_TIMEOUT_MILLIS) {
+                expiredAcquires.add(mPendingAcquires.keyAt(i));
+                mPendingAcquires.removeAt(i);
+            } else {
+                retryTimeoutMillis = Math.max(retryTimeoutMillis, timeoutMillis);
+            }
+        }
+        for (CompletableFuture<Integer> future : expiredAcquires) {
+            future.completeExceptionally(new MmsNetworkException("Acquiring network failed"));
+        }
+        return retryTimeoutMillis;
+    }
+
+    /**
+     * Complete all the acquisitions waiting for the network
+     *
+     * @param netId The net Id of the available network
+     * @param e     The failure if the network could not be acquired, or null
+     */
+    private void completePendingAcquiresLocked(int netId, MmsNetworkException e) {
+        final List<CompletableFuture<Integer>> pendingAcquires =
+                new ArrayList<>(mPendingAcquires.keySet());
+        mPendingAcquires.clear();
+        if (mSimCardStateChangedReceiverRegistered) {
+            // Unregister the receiver.
+            mContext.unregisterReceiver(mSimCardStateChangedReceiver);
+            mSimCardStateChangedReceiverRegistered = false;
+        }
+        for (CompletableFuture<Integer> future : pendingAcquires) {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(netId);
+            }
+        }
+    }
+
+    /**
+     * Move a request holding the satellite MMS network to a terrestrial MMS network, blocking
+     * until it is available. The hold on the MMS network is released first, so that the satellite
+     * network is not kept while waiting. The hold on the terrestrial network is taken even if
+     * this fails, and must be released with {@link #releaseTerrestrialNetwork}.
+     *
+     * @param requestId request ID for logging
+     * @throws com.android.mms.service.exception.MmsNetworkException if we fail to acquire it
+     * @return The net Id of the acquired network.
+     */
+    public int acquireTerrestrialNetwork(final String requestId) throws MmsNetworkException {
+        final int networkRequestTimeoutMillis = mDeps.getTerrestrialNetworkRequestTimeoutMillis();
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        synchronized (this) {
+            mTerrestrialHolderCount++;
+        }
+        releaseNetworkForTerrestrial(requestId);
+        synchronized (this) {
+            if (mTerrestrialNetwork != null) {
+                return mTerrestrialNetwork.getNetId();
+            }
+            if (mTerrestrialNetworkRequest == null) {
+                throw new MmsNetworkException("No terrestrial network to acquire");
+            }
+            if (mDeps.isUsingNonTerrestrialNetwork(mContext, mSubId)) {
+                LogUtil.w(requestId, "MmsNetworkManager: no terrestrial network in service");
+                throw new MmsNetworkException("No terrestrial network in service");
+            }
+            if (mTerrestrialNetworkCallback == null) {
+                LogUtil.d(requestId, "MmsNetworkManager: start new terrestrial network request");
+                mTerrestrialNetworkCallback = new TerrestrialNetworkCallback();
+                getConnectivityManager().requestNetwork(mTerrestrialNetworkRequest,
+                        mTerrestrialNetworkCallback, networkRequestTimeoutMillis);
+            }
+            mPendingTerrestrialAcquires.add(future);
+        }
+
+        final Runnable timeoutTask = () -> {
+            synchronized (this) {
+                if (mPendingTerrestrialAcquires.remove(future)) {
+                    LogUtil.e(requestId, "MmsNetworkManager: terrestrial network timed out");
+                    future.completeExceptionally(
+                            new MmsNetworkException("Acquiring terrestrial network failed"));
+                }
             }
+        };
+        mEventHandler.postDelayed(timeoutTask,
+                networkRequestTimeoutMillis + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
+        future.whenComplete((netId, e) -> mEventHandler.removeCallbacks(timeoutTask));
+        final int netId = waitForNetwork(requestId, future);
+        final MmsHttpClient httpClient;
+        synchronized (this) {
+            httpClient = getOrCreateTerrestrialHttpClientLocked();
+        }
+        if (httpClient != null) {
+            httpClient.getDnsCache().prewarm();
+        }
+        return netId;
+    }
+
+    /**
+     * Release the hold of a request moving to the terrestrial network. Unlike
+     * {@link #releaseNetwork}, this doesn't go through the lease policy: the satellite network is
+     * released right away once nobody holds it, and isn't expected to be needed again soon.
+     */
+    private void releaseNetworkForTerrestrial(String requestId) {
+        final int state = mLease.release();
+        LogUtil.d(requestId, "MmsNetworkManager: release for terrestrial, lease " + mLease);
+        if (state == MmsNetworkLease.STATE_DRAINING) {
+            mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
+            mNetworkReleaseTask.run();
+        } else if (state == MmsNetworkLease.STATE_IDLE) {
+            synchronized (this) {
+                if (mLease.getState() == MmsNetworkLease.STATE_IDLE) {
+                    releaseRequestLocked(mNetworkCallback);
+                }
+            }
+        }
+    }
+
+    private static int waitForNetwork(String requestId, CompletableFuture<Integer> future)
+            throws MmsNetworkException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            LogUtil.w(requestId, "MmsNetworkManager: acquire network wait interrupted");
+            Thread.currentThread().interrupt();
+            throw new MmsNetworkException("Acquiring network failed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MmsNetworkException) {
+                throw (MmsNetworkException) e.getCause();
+            }
+            throw new MmsNetworkException(e.getCause());
+        }
+    }
 
-            throw new MmsNetworkException("Acquiring network failed");
+    /**
+     * Release the terrestrial MMS network held by the request, once nobody is holding on to it.
+     *
+     * @param requestId request ID for logging
+     */
+    public void releaseTerrestrialNetwork(final String requestId) {
+        synchronized (this) {
+            if (mTerrestrialHolderCount == 0) {
+                return;
+            }
+            mTerrestrialHolderCount--;
+            LogUtil.d(requestId, "MmsNetworkManager: release terrestrial network, holders "
+                    + mTerrestrialHolderCount);
+            if (mTerrestrialHolderCount == 0) {
+                releaseTerrestrialRequestLocked();
+            }
+        }
+    }
+
+    private void completePendingTerrestrialAcquiresLocked(int netId, MmsNetworkException e) {
+        final List<CompletableFuture<Integer>> pendingAcquires =
+                new ArrayList<>(mPendingTerrestrialAcquires);
+        mPendingTerrestrialAcquires.clear();
+        for (CompletableFuture<Integer> future : pendingAcquires) {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(netId);
+            }
+        }
+    }
+
+    /**
+     * Release the terrestrial network request, failing its waiters
+     */
+    private void releaseTerrestrialRequestLocked() {
+        unregisterNetworkCallbackLocked(mTerrestrialNetworkCallback);
+        mTerrestrialNetworkCallback = null;
+        clearTerrestrialNetworkLocked();
+        completePendingTerrestrialAcquiresLocked(0,
+                new MmsNetworkException("Acquiring terrestrial network failed"));
+    }
+
+    private void clearTerrestrialNetworkLocked() {
+        mTerrestrialNetwork = null;
+        if (mTerrestrialHttpClient != null) {
+            mTerrestrialHttpClient.onNetworkGone();
+            mTerrestrialHttpClient = null;
         }
     }
 
@@ -423,20 +985,29 @@ public class MmsNetworkManager {
      *                           acknowledgement on the same network.
      */
     public void releaseNetwork(final String requestId, final boolean shouldDelayRelease) {
-        synchronized (this) {
-            if (mMmsRequestCount > 0) {
-                mMmsRequestCount -= 1;
-                LogUtil.d(requestId, "MmsNetworkManager: release, count=" + mMmsRequestCount);
-                if (mMmsRequestCount < 1) {
-                    if (shouldDelayRelease) {
-                        // remove previously posted task and post a delayed task on the release
-                        // handler to release the network
-                        mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
-                        mReleaseHandler.postDelayed(mNetworkReleaseTask,
-                                mNetworkReleaseTimeoutMillis);
-                    } else {
-                        releaseRequestLocked(mNetworkCallback);
-                    }
+        final int state = mLease.release();
+        LogUtil.d(requestId, "MmsNetworkManager: release, lease " + mLease);
+        if (state == MmsNetworkLease.STATE_DRAINING) {
+            // Keep the network for the expected next request, and at least for the
+            // carrier-configured timeout when asked to.
+            final long holdMillis = mLeasePolicy.onIdle(SystemClock.elapsedRealtime(),
+                    shouldDelayRelease ? mNetworkReleaseTimeoutMillis : 0);
+            LogUtil.d(requestId, "MmsNetworkManager: hold network for " + holdMillis
+                    + "ms, lease " + mLeasePolicy);
+            // remove previously posted task and post a delayed task on the release handler to
+            // release the network
+            mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
+            if (holdMillis > 0) {
+                mReleaseHandler.postDelayed(mNetworkReleaseTask, holdMillis);
+            } else {
+                mNetworkReleaseTask.run();
+            }
+        } else if (state == MmsNetworkLease.STATE_IDLE) {
+            mLeasePolicy.onIdle(SystemClock.elapsedRealtime(), 0);
+            synchronized (this) {
+                // No network to keep, drop the request unless a new request came meanwhile
+                if (mLease.getState() == MmsNetworkLease.STATE_IDLE) {
+                    releaseRequestLocked(mNetworkCallback);
                 }
             }
         }
@@ -448,6 +1019,7 @@ public class MmsNetworkManager {
     private void startNewNetworkRequestLocked(int networkRequestTimeoutMillis) {
         final ConnectivityManager connectivityManager = getConnectivityManager();
         mNetworkCallback = new NetworkRequestCallback();
+        mNetworkRequestStartMillis = SystemClock.elapsedRealtime();
         connectivityManager.requestNetwork(
                 mNetworkRequest, mNetworkCallback, networkRequestTimeoutMillis);
     }
@@ -458,6 +1030,16 @@ public class MmsNetworkManager {
      * @param callback the {@link android.net.ConnectivityManager.NetworkCallback} to unregister
      */
     private void releaseRequestLocked(ConnectivityManager.NetworkCallback callback) {
+        unregisterNetworkCallbackLocked(callback);
+        resetLocked();
+    }
+
+    /**
+     * Unregister the callback of a {@link android.net.NetworkRequest} for MMS
+     *
+     * @param callback the {@link android.net.ConnectivityManager.NetworkCallback} to unregister
+     */
+    private void unregisterNetworkCallbackLocked(ConnectivityManager.NetworkCallback callback) {
         if (callback != null) {
             final ConnectivityManager connectivityManager = getConnectivityManager();
             try {
@@ -473,7 +1055,6 @@ public class MmsNetworkManager {
                 LogUtil.w("Unregister network callback exception", e);
             }
         }
-        resetLocked();
     }
 
     /**
@@ -481,9 +1062,41 @@ public class MmsNetworkManager {
      */
     private void resetLocked() {
         mNetworkCallback = null;
+        mNetworkRequestRetryPending = false;
+        mNetworkRequestRetryCount = 0;
+        mEventHandler.removeCallbacks(mNetworkRequestRetryTask);
         mNetwork = null;
-        mMmsRequestCount = 0;
-        mMmsHttpClient = null;
+        mNetworkRequestStartMillis = 0;
+        endSuspendedPeriodLocked(SystemClock.elapsedRealtime());
+        mLease.onRequestReleased();
+        completePendingAcquiresLocked(0, new MmsNetworkException("Acquiring network failed"));
+        clearHttpClientLocked();
+        clearDnsCacheLocked();
+    }
+
+    /**
+     * Drop the host name resolution cache of the current network, remembering its host names.
+     */
+    private void clearDnsCacheLocked() {
+        if (mDnsCache != null) {
+            final Set<String> hosts = mDnsCache.getHosts();
+            if (!hosts.isEmpty()) {
+                mRecentHosts.clear();
+                mRecentHosts.addAll(hosts);
+            }
+            mDnsCache = null;
+        }
+    }
+
+    /**
+     * Drop the MmsHttpClient of the current network, waking up any request blocked on it.
+     */
+    private void clearHttpClientLocked() {
+        if (mMmsHttpClient != null) {
+            mMmsHttpClient.onNetworkGone();
+            mMmsHttpClient = null;
+        }
+        mNioTransport = null;
     }
 
     private @NonNull ConnectivityManager getConnectivityManager() {
@@ -504,13 +1117,67 @@ public class MmsNetworkManager {
             if (mMmsHttpClient == null) {
                 if (mNetwork != null) {
                     // Create new MmsHttpClient for the current Network
-                    mMmsHttpClient = new MmsHttpClient(mContext, mNetwork, mConnectivityManager);
+                    mMmsHttpClient = new MmsHttpClient(mContext, mNetwork, mConnectivityManager,
+                            mDnsCache, mIsSatelliteTransport);
                 }
             }
             return mMmsHttpClient;
         }
     }
 
+    /**
+     * Get the MmsHttpClient of the terrestrial network
+     *
+     * @return The MmsHttpClient instance, or null if there is no terrestrial network
+     */
+    private MmsHttpClient getOrCreateTerrestrialHttpClientLocked() {
+        if (mTerrestrialHttpClient == null && mTerrestrialNetwork != null) {
+            mTerrestrialHttpClient = new MmsHttpClient(mContext, mTerrestrialNetwork,
+                    mConnectivityManager, new MmsDnsCache(
+                            mTerrestrialNetwork.getPrivateDnsBypassingCopy(), mRecentHosts),
+                    false);
+        }
+        return mTerrestrialHttpClient;
+    }
+
+    /**
+     * Get the MmsTransport selected by the carrier for the current network. The nio engine is also
+     * used when socket options are configured, as the default engine can only apply them to https.
+     *
+     * @param mmsConfig   The MMS config of the request
+     * @param terrestrial Whether the request needs the terrestrial network, see
+     *                    {@link #acquireTerrestrialNetwork}
+     * @return The MmsTransport instance, or null if there is no network
+     */
+    public MmsTransport getOrCreateTransport(Bundle mmsConfig, boolean terrestrial) {
+        final String engine = mmsConfig.getString(
+                MmsConstants.MMS_CONFIG_TRANSPORT_ENGINE_STRING, MmsTransport.ENGINE_DEFAULT);
+        synchronized (this) {
+            if (terrestrial) {
+                getOrCreateTerrestrialHttpClientLocked();
+                if (mTerrestrialHttpClient == null
+                        || !useNioEngine(engine, mmsConfig, mTerrestrialHttpClient)) {
+                    return mTerrestrialHttpClient;
+                }
+                return new NioMmsTransport(mTerrestrialHttpClient);
+            }
+            final MmsHttpClient httpClient = getOrCreateHttpClient();
+            if (httpClient == null || !useNioEngine(engine, mmsConfig, httpClient)) {
+                return httpClient;
+            }
+            if (mNioTransport == null) {
+                mNioTransport = new NioMmsTransport(httpClient);
+            }
+            return mNioTransport;
+        }
+    }
+
+    private static boolean useNioEngine(String engine, Bundle mmsConfig,
+            MmsHttpClient httpClient) {
+        return MmsTransport.ENGINE_NIO.equals(engine)
+                || !new MmsSocketOptions(mmsConfig, httpClient.isSatelliteTransport()).isDefault();
+    }
+
     /**
      * Get the APN name for the active network
      *
@@ -533,6 +1200,45 @@ public class MmsNetworkManager {
         return apnName;
     }
 
+    /**
+     * @return The subscription of the MMS network
+     */
+    public int getSubId() {
+        return mSubId;
+    }
+
+    /**
+     * Get the monitor of the MMS data connections of the subscription, started on first use
+     *
+     * @return The MmsDataConnectionMonitor instance
+     */
+    public MmsDataConnectionMonitor getDataConnectionMonitor() {
+        mDataConnectionMonitor.start();
+        return mDataConnectionMonitor;
+    }
+
+    /**
+     * @return The lease of the network by the MMS requests
+     */
+    @VisibleForTesting
+    public MmsNetworkLease getLease() {
+        return mLease;
+    }
+
+    /**
+     * @return The network phase timings of the requests of the subscription
+     */
+    public MmsNetworkLatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * @return The lease policy keeping the network between requests
+     */
+    public MmsNetworkLeasePolicy getLeasePolicy() {
+        return mLeasePolicy;
+    }
+
     @VisibleForTesting
     protected int getNetworkReleaseTimeoutMillis() {
         return mNetworkReleaseTimeoutMillis;
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+/**
+ * Time spent by one MMS request in each network phase, summed over its attempts. Only used by
+ * the thread executing the request.
+ */
+public class MmsNetworkTimings {
+    // Time waiting for MmsNetworkManager to acquire the network
+    private long mAcquireWaitMillis;
+    // Whether the last acquisition found the network available or kept, without a new request
+    private boolean mNetworkReused;
+    // Time from the network request to onCapabilitiesChanged reporting the network available,
+    // for the last acquisition if it was not reused
+    private long mNetworkSetupMillis;
+    // Time the network was suspended or lost while the request held or waited for it
+    private long mSuspendedMillis;
+    // Time waiting for IPv4 to be provisioned on the network
+    private long mIpv4WaitMillis;
+    // Suspended time of the network manager when the current attempt started, -1 if none
+    private long mSuspendedMillisAtAcquire = -1;
+
+    /**
+     * Called when an attempt starts acquiring the network
+     *
+     * @param suspendedMillis The total suspended time of the network manager
+     */
+    void onAcquireStarted(long suspendedMillis) {
+        mSuspendedMillisAtAcquire = suspendedMillis;
+    }
+
+    /**
+     * Called by the network manager when it found the network available, or has to wait for it
+     */
+    void setNetworkReused(boolean reused) {
+        mNetworkReused = reused;
+    }
+
+    /**
+     * Called when an attempt is done acquiring the network, acquired or not
+     *
+     * @param waitMillis  The time waited for the network
+     * @param setupMillis The setup time of the network acquired, 0 if it failed or had none
+     */
+    void onAcquireFinished(long waitMillis, long setupMillis) {
+        mAcquireWaitMillis += waitMillis;
+        mNetworkSetupMillis = mNetworkReused ? 0 : setupMillis;
+    }
+
+    /**
+     * Called when an attempt releases the network
+     *
+     * @param suspendedMillis The total suspended time of the network manager
+     */
+    public void onReleased(long suspendedMillis) {
+        if (mSuspendedMillisAtAcquire >= 0) {
+            mSuspendedMillis += Math.max(0, suspendedMillis - mSuspendedMillisAtAcquire);
+            mSuspendedMillisAtAcquire = -1;
+        }
+    }
+
+    /**
+     * Add the IPv4 provisioning wait of an attempt
+     */
+    public void addIpv4WaitMillis(long waitMillis) {
+        mIpv4WaitMillis += waitMillis;
+    }
+
+    public long getAcquireWaitMillis() {
+        return mAcquireWaitMillis;
+    }
+
+    public boolean isNetworkReused() {
+        return mNetworkReused;
+    }
+
+    public long getNetworkSetupMillis() {
+        return mNetworkSetupMillis;
+    }
+
+    public long getSuspendedMillis() {
+        return mSuspendedMillis;
+    }
+
+    public long getIpv4WaitMillis() {
+        return mIpv4WaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "acquire=" + mAcquireWaitMillis + "ms reused=" + mNetworkReused
+                + " setup=" + mNetworkSetupMillis + "ms suspended=" + mSuspendedMillis
+                + "ms ipv4=" + mIpv4WaitMillis + "ms";
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.provider.Telephony;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class remembers the permanent redirects (301 and 308) of the MMSC of each subscription, so
+ * that the following sends go straight to the new location instead of paying the extra round trip
+ * every time. The MMSC is identified by the scheme, host and path of its URL. The redirects are
+ * persisted, and dropped when the APNs or the carrier config change, or when their target is gone.
+ */
+public class MmsRedirectCache {
+    private static volatile MmsRedirectCache sInstance = new MmsRedirectCache();
+
+    public static MmsRedirectCache getInstance() {
+        return sInstance;
+    }
+
+    private static final String SHARED_PREFERENCES_NAME = "mms_redirects";
+    // Maximum number of redirects kept, there are only a few MMSCs per subscription
+    @VisibleForTesting
+    public static final int MAX_ENTRIES = 16;
+    // Maximum number of redirects followed in a chain of cached redirects
+    private static final int MAX_CHAINED_REDIRECTS = 5;
+
+    // The redirect target URLs, keyed by subId and original MMSC, least recently used first
+    @GuardedBy("this")
+    private final LinkedHashMap<String, String> mRedirects =
+            new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true /*accessOrder*/);
+    // Null until init(), the cache is then only kept in memory
+    @GuardedBy("this")
+    private SharedPreferences mPreferences;
+
+    /** This receiver listens to ACTION_CARRIER_CONFIG_CHANGED to drop the stale redirects. */
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int subId = intent.getIntExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            LogUtil.i("MmsRedirectCache receives ACTION_CARRIER_CONFIG_CHANGED for " + subId);
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                invalidate(subId);
+            } else {
+                invalidateAll();
+            }
+        }
+    };
+
+    /** This observer drops all the redirects whenever an APN changes. */
+    private final ContentObserver mApnObserver = new ContentObserver(null /*handler*/) {
+        @Override
+        public void onChange(boolean selfChange) {
+            LogUtil.i("MmsRedirectCache: APN changed");
+            invalidateAll();
+        }
+    };
+
+    @VisibleForTesting
+    public MmsRedirectCache() {
+    }
+
+    /**
+     * Load the persisted redirects and start watching for APN and carrier config changes.
+     *
+     * @param context The Context object
+     */
+    public void init(Context context) {
+        final SharedPreferences preferences =
+                context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        synchronized (this) {
+            mPreferences = preferences;
+            for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                if (entry.getValue() instanceof String) {
+                    mRedirects.put(entry.getKey(), (String) entry.getValue());
+                }
+            }
+        }
+        context.registerReceiver(
+                mReceiver, new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+        context.getContentResolver().registerContentObserver(
+                Telephony.Carriers.CONTENT_URI, true /*notifyForDescendants*/, mApnObserver);
+    }
+
+    /**
+     * Get where an MMSC has been permanently moved.
+     *
+     * @param subId The subscription of the request
+     * @param url   The MMSC URL of the request
+     * @return The URL to use instead, or null if the MMSC has not been redirected
+     */
+    public synchronized String getRedirect(int subId, String url) {
+        String target = null;
+        for (int i = 0; i < MAX_CHAINED_REDIRECTS; i++) {
+            final String next = mRedirects.get(getKey(subId, target != null ? target : url));
+            if (next == null) {
+                break;
+            }
+            target = next;
+        }
+        return target;
+    }
+
+    /**
+     * Remember a permanent redirect of an MMSC.
+     *
+     * @param subId  The subscription of the request
+     * @param url    The MMSC URL of the request
+     * @param target The URL the request was permanently redirected to
+     */
+    public synchronized void putRedirect(int subId, String url, String target) {
+        final String key = getKey(subId, url);
+        if (!mRedirects.containsKey(key) && mRedirects.size() >= MAX_ENTRIES) {
+            final Iterator<String> eldest = mRedirects.keySet().iterator();
+            final String evicted = eldest.next();
+            eldest.remove();
+            if (mPreferences != null) {
+                mPreferences.edit().remove(evicted).apply();
+            }
+        }
+        mRedirects.put(key, target);
+        if (mPreferences != null) {
+            mPreferences.edit().putString(key, target).apply();
+        }
+    }
+
+    /**
+     * Forget the redirect of an MMSC, e.g. because its target doesn't work.
+     *
+     * @param subId The subscription of the request
+     * @param url   The MMSC URL of the request
+     */
+    public synchronized void removeRedirect(int subId, String url) {
+        final String key = getKey(subId, url);
+        if (mRedirects.remove(key) != null && mPreferences != null) {
+            mPreferences.edit().remove(key).apply();
+        }
+    }
+
+    /**
+     * Forget all the redirects of a subscription.
+     *
+     * @param subId The subscription
+     */
+    public synchronized void invalidate(int subId) {
+        final String prefix = getKey(subId, "");
+        final SharedPreferences.Editor editor = mPreferences != null ? mPreferences.edit() : null;
+        final Iterator<String> keys = mRedirects.keySet().iterator();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (key.startsWith(prefix)) {
+                keys.remove();
+                if (editor != null) {
+                    editor.remove(key);
+                }
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Forget all the redirects.
+     */
+    public synchronized void invalidateAll() {
+        mRedirects.clear();
+        if (mPreferences != null) {
+            mPreferences.edit().clear().apply();
+        }
+    }
+
+    private static String getKey(int subId, String url) {
+        return subId + " " + getMmscKey(url);
+    }
+
+    /**
+     * @return The scheme, host and path of an MMSC URL, without e.g. the query
+     */
+    private static String getMmscKey(String url) {
+        try {
+            final URL parsed = new URL(url);
+            return parsed.getProtocol() + "://" + parsed.getHost()
+                    + (parsed.getPort() != -1 ? ":" + parsed.getPort() : "") + parsed.getPath();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+}
@@ -29,22 +29,19 @@ import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.CarrierMessagingServiceWrapper.CarrierMessagingCallback;
 import android.telephony.AnomalyReporter;
 import android.telephony.CarrierConfigManager;
-import android.telephony.PreciseDataConnectionState;
 import android.telephony.ServiceState;
 import android.telephony.SmsManager;
-import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
 import android.telephony.data.ApnSetting;
 import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.feature.MmTelFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
-import android.util.SparseArray;
 
-import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.flags.Flags;
 import com.android.mms.service.exception.ApnException;
 import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.MmsInvalidResponseException;
 import com.android.mms.service.exception.MmsNetworkException;
 import com.android.mms.service.metrics.MmsStats;
 
@@ -103,6 +100,8 @@ public abstract class MmsRequest {
     protected RequestManager mRequestManager;
     // The SIM id
     protected int mSubId;
+    // The SIM id whose MMS network carries the request, the data subscription of its group
+    private int mNetworkSubId;
     protected final int mCallingUser;
     // The creator app
     protected final String mCreatorPkg;
@@ -112,7 +111,12 @@ public abstract class MmsRequest {
     protected Context mContext;
     protected long mMessageId;
     protected int mLastConnectionFailure;
+    // Whether the current attempt holds a terrestrial network instead of the satellite MMS
+    // network, because the PDU is too large for satellite
+    protected boolean mUseTerrestrialNetwork;
     private MmsStats mMmsStats;
+    // Time spent in each network phase, across the attempts
+    protected final MmsNetworkTimings mNetworkTimings = new MmsNetworkTimings();
     private int result;
     private int httpStatusCode;
     protected TelephonyManager mTelephonyManager;
@@ -131,42 +135,13 @@ public abstract class MmsRequest {
     };
     protected MmsRequestState currentState = MmsRequestState.Unknown;
 
-    class MonitorTelephonyCallback extends TelephonyCallback implements
-            TelephonyCallback.PreciseDataConnectionStateListener {
-
-        /** The lock to update mNetworkIdToApn. */
-        private final Object mLock = new Object();
-        /**
-         * Track the network agent Id to APN. Usually we have at most 2 networks that are capable of
-         * MMS at the same time (terrestrial and satellite)
-         */
-        @GuardedBy("mLock")
-        private final SparseArray<ApnSetting> mNetworkIdToApn = new SparseArray<>(2);
-        @Override
-        public void onPreciseDataConnectionStateChanged(
-                @NonNull PreciseDataConnectionState connectionState) {
-            ApnSetting apnSetting = connectionState.getApnSetting();
-            if (apnSetting != null) {
-                // Only track networks that are capable of MMS.
-                if ((apnSetting.getApnTypeBitmask() & ApnSetting.TYPE_MMS) != 0) {
-                    LogUtil.d("onPreciseDataConnectionStateChanged: " + connectionState);
-                    mLastConnectionFailure = connectionState.getLastCauseCode();
-                    if (Flags.mmsGetApnFromPdsc()) {
-                        synchronized (mLock) {
-                            mNetworkIdToApn.put(connectionState.getNetId(), apnSetting);
-                        }
-                    }
-                }
-            }
-        }
-    }
-
     public MmsRequest(RequestManager requestManager, int subId, int callingUser, String creator,
                       Bundle mmsConfig, Context context, long messageId, MmsStats mmsStats,
                       TelephonyManager telephonyManager) {
         currentState = MmsRequestState.Created;
         mRequestManager = requestManager;
         mSubId = subId;
+        mNetworkSubId = subId;
         mCallingUser = callingUser;
         mCreatorPkg = creator;
         mMmsConfig = mmsConfig;
@@ -180,6 +155,14 @@ public abstract class MmsRequest {
         return mSubId;
     }
 
+    public int getNetworkSubId() {
+        return mNetworkSubId;
+    }
+
+    public void setNetworkSubId(int networkSubId) {
+        mNetworkSubId = networkSubId;
+    }
+
     /**
      * Execute the request
      *
@@ -200,21 +183,22 @@ public abstract class MmsRequest {
             result = SmsManager.MMS_ERROR_IO_ERROR;
         } else { // Execute
             long retryDelaySecs = 2;
+            final MmsDataConnectionMonitor dataConnectionMonitor =
+                    networkManager.getDataConnectionMonitor();
             // Try multiple times of MMS HTTP request, depending on the error.
             for (retryId = 0; retryId < RETRY_TIMES; retryId++) {
                 httpStatusCode = 0; // Clear for retry.
-                MonitorTelephonyCallback connectionStateCallback = new MonitorTelephonyCallback();
+                // Only the causes reported from now on are about this attempt
+                final long causeSequence = dataConnectionMonitor.getCauseSequence();
+                mUseTerrestrialNetwork = false;
                 try {
-                    listenToDataConnectionState(connectionStateCallback);
                     currentState = MmsRequestState.AcquiringNetwork;
-                    int networkId = networkManager.acquireNetwork(requestId);
+                    int networkId = networkManager.acquireNetwork(requestId, mNetworkTimings);
                     currentState = MmsRequestState.LoadingApn;
                     ApnSettings apn = null;
                     ApnSetting networkApn = null;
                     if (Flags.mmsGetApnFromPdsc()) {
-                        synchronized (connectionStateCallback.mLock) {
-                            networkApn = connectionStateCallback.mNetworkIdToApn.get(networkId);
-                        }
+                        networkApn = dataConnectionMonitor.getApn(networkId);
                         if (networkApn != null) {
                             apn = ApnSettings.getApnSettingsFromNetworkApn(networkApn);
                         }
@@ -222,8 +206,9 @@ public abstract class MmsRequest {
                     if (apn == null) {
                         final String apnName = networkManager.getApnName();
                         LogUtil.d(requestId, "APN name is " + apnName);
+                        // The APN of the network, which may be the one of the data subscription
                         try {
-                            apn = ApnSettings.load(context, apnName, mSubId, requestId);
+                            apn = ApnSettings.load(context, apnName, mNetworkSubId, requestId);
                         } catch (ApnException e) {
                             // If no APN could be found, fall back to trying without the APN name
                             if (apnName == null) {
@@ -232,7 +217,7 @@ public abstract class MmsRequest {
                             }
                             LogUtil.i(requestId, "No match with APN name: "
                                     + apnName + ", try with no name");
-                            apn = ApnSettings.load(context, null, mSubId, requestId);
+                            apn = ApnSettings.load(context, null, mNetworkSubId, requestId);
                         }
                     }
 
@@ -245,9 +230,24 @@ public abstract class MmsRequest {
                     if (Flags.carrierEnabledSatelliteFlag()
                             && networkManager.isSatelliteTransport()
                             && !canTransferPayloadOnCurrentNetwork()) {
-                        LogUtil.e(requestId, "PDU too large for satellite");
-                        result = SmsManager.MMS_ERROR_TOO_LARGE_FOR_TRANSPORT;
-                        break;
+                        // Small PDUs go over satellite, larger ones wait for a terrestrial network
+                        // holding it instead, even if the acquisition fails
+                        mUseTerrestrialNetwork = true;
+                        try {
+                            final int terrestrialNetworkId =
+                                    networkManager.acquireTerrestrialNetwork(requestId);
+                            LogUtil.i(requestId, "PDU too large for satellite, using network "
+                                    + terrestrialNetworkId);
+                            final ApnSetting terrestrialApn =
+                                    dataConnectionMonitor.getApn(terrestrialNetworkId);
+                            if (terrestrialApn != null) {
+                                apn = ApnSettings.getApnSettingsFromNetworkApn(terrestrialApn);
+                            }
+                        } catch (MmsNetworkException e) {
+                            LogUtil.e(requestId, "PDU too large for satellite", e);
+                            result = SmsManager.MMS_ERROR_TOO_LARGE_FOR_TRANSPORT;
+                            break;
+                        }
                     }
                     currentState = MmsRequestState.DoingHttp;
                     response = doHttp(context, networkManager, apn);
@@ -262,6 +262,12 @@ public abstract class MmsRequest {
                     LogUtil.e(requestId, "MMS network acquiring failure", e);
                     result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
                     break;
+                } catch (MmsInvalidResponseException e) {
+                    // Retrying would most likely get the same error page
+                    LogUtil.e(requestId, "Invalid MMS response", e);
+                    result = SmsManager.MMS_ERROR_HTTP_FAILURE;
+                    httpStatusCode = e.getStatusCode();
+                    break;
                 } catch (MmsHttpException e) {
                     LogUtil.e(requestId, "HTTP or network I/O failure", e);
                     result = SmsManager.MMS_ERROR_HTTP_FAILURE;
@@ -272,11 +278,18 @@ public abstract class MmsRequest {
                     result = SmsManager.MMS_ERROR_UNSPECIFIED;
                     break;
                 } finally {
-                    // Release the MMS network immediately except successful DownloadRequest.
-                    networkManager.releaseNetwork(requestId,
-                            this instanceof DownloadRequest
-                                    && result == Activity.RESULT_OK);
-                    stopListeningToDataConnectionState(connectionStateCallback);
+                    mNetworkTimings.onReleased(networkManager.getSuspendedMillis());
+                    if (mUseTerrestrialNetwork) {
+                        networkManager.releaseTerrestrialNetwork(requestId);
+                    } else {
+                        // Release the MMS network immediately except successful DownloadRequest.
+                        networkManager.releaseNetwork(requestId,
+                                this instanceof DownloadRequest
+                                        && result == Activity.RESULT_OK);
+                    }
+                    if (dataConnectionMonitor.getCauseSequence() != causeSequence) {
+                        mLastConnectionFailure = dataConnectionMonitor.getLastCauseCode();
+                    }
                 }
 
                 if (result != Activity.RESULT_CANCELED) {
@@ -287,24 +300,19 @@ public abstract class MmsRequest {
                     retryDelaySecs <<= 1;
                 }
             }
+            LogUtil.i(requestId, "Network timings: " + mNetworkTimings);
+            // The RAT of the network the request ran on, which may belong to another
+            // subscription of the group
+            final TelephonyManager networkTelephonyManager = mNetworkSubId == mSubId
+                    ? mTelephonyManager : mTelephonyManager.createForSubscriptionId(mNetworkSubId);
+            networkManager.getLatencyStats().record(
+                    networkTelephonyManager.getDataNetworkType(), mNetworkTimings);
+            mMmsStats.setNetworkTimings(mNetworkTimings);
         }
         processResult(context, result, response, httpStatusCode, /* handledByCarrierApp= */ false,
                 retryId);
     }
 
-    private void listenToDataConnectionState(MonitorTelephonyCallback connectionStateCallback) {
-        final TelephonyManager telephonyManager = mContext.getSystemService(
-                TelephonyManager.class).createForSubscriptionId(mSubId);
-        telephonyManager.registerTelephonyCallback(r -> r.run(), connectionStateCallback);
-    }
-
-    private void stopListeningToDataConnectionState(
-            MonitorTelephonyCallback connectionStateCallback) {
-        final TelephonyManager telephonyManager = mContext.getSystemService(
-                TelephonyManager.class).createForSubscriptionId(mSubId);
-        telephonyManager.unregisterTelephonyCallback(connectionStateCallback);
-    }
-
     /**
      * Process the result of the completed request, including updating the message status
      * in database and sending back the result via pending intents.
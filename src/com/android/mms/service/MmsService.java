@@ -51,11 +51,14 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.data.ApnSetting;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IMms;
 import com.android.internal.telephony.flags.Flags;
+import com.android.mms.service.exception.ApnException;
 import com.android.mms.service.metrics.MmsMetricsCollector;
 import com.android.mms.service.metrics.MmsStats;
 
@@ -70,13 +73,19 @@ import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.pdu.SendReq;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -101,6 +110,10 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     // specific size limit should not be used (as it could be lower on some carriers).
     private static final int MAX_MMS_FILE_SIZE = 8 * 1024 * 1024;
 
+    // The number of MmsNetworkManagers kept, beyond which the least recently used idle ones are
+    // dropped
+    private static final int MAX_NETWORK_MANAGERS = 4;
+
     // The default number of threads allowed to run MMS requests in each queue
     public static final int THREAD_POOL_SIZE = 4;
 
@@ -126,14 +139,27 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     // Thread pool for transferring PDU with MMS apps
     private final ExecutorService mPduTransferExecutor = Executors.newCachedThreadPool();
 
-    // A cache of MmsNetworkManager for SIMs
-    private final SparseArray<MmsNetworkManager> mNetworkManagerCache = new SparseArray<>();
+    // A cache of MmsNetworkManager for the subscriptions carrying the MMS data, see
+    // getNetworkSubId, in least recently used order
+    private final LinkedHashMap<Integer, MmsNetworkManager> mNetworkManagerCache =
+            new LinkedHashMap<>(MAX_NETWORK_MANAGERS, 0.75f, true /* accessOrder */);
+
+    // Drops the MmsNetworkManagers of the subscriptions that become inactive
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsChangedListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    evictInactiveNetworkManagers();
+                }
+            };
 
     // The default TelephonyManager and a cache of TelephonyManagers for individual subscriptions
     private TelephonyManager mDefaultTelephonyManager;
     private final SparseArray<TelephonyManager> mTelephonyManagerCache = new SparseArray<>();
 
     // The current SIM ID for the running requests. Only one SIM can send/download MMS at a time.
+    // This is the subscription carrying the data of the requests, shared by the subscriptions of
+    // a group, see getNetworkSubId.
     private int mCurrentSubId;
     // The current running MmsRequest count.
     private int mRunningRequestCount;
@@ -145,17 +171,122 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
 
     private static MmsMetricsCollector mMmsMetricsCollector;
 
-    private MmsNetworkManager getNetworkManager(int subId) {
+    /**
+     * Get the MmsNetworkManager of a subscription for a request. It is not evicted until the
+     * request calls {@link MmsNetworkManager#onRequestFinished}.
+     */
+    private MmsNetworkManager acquireNetworkManager(int subId) {
         synchronized (mNetworkManagerCache) {
             MmsNetworkManager manager = mNetworkManagerCache.get(subId);
             if (manager == null) {
                 manager = new MmsNetworkManager(this, subId);
                 mNetworkManagerCache.put(subId, manager);
             }
+            manager.onRequestStarted();
+            trimNetworkManagerCacheLocked();
             return manager;
         }
     }
 
+    /**
+     * Get the subscription whose MMS network carries the MMS of a subscription. This is the
+     * active data subscription if both are in the same subscription group and it has an MMS APN,
+     * so that the requests of grouped and opportunistic subscriptions share one MMS network.
+     */
+    private int getNetworkSubId(int subId) {
+        final int dataSubId = SubscriptionManager.getActiveDataSubscriptionId();
+        if (dataSubId == subId || !SubscriptionManager.isValidSubscriptionId(dataSubId)) {
+            return subId;
+        }
+        final SubscriptionManager subscriptionManager =
+                getSystemService(SubscriptionManager.class);
+        if (subscriptionManager == null) {
+            return subId;
+        }
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            final int networkSubId = resolveNetworkSubId(subId,
+                    subscriptionManager.getActiveSubscriptionInfo(subId), dataSubId,
+                    subscriptionManager.getActiveSubscriptionInfo(dataSubId));
+            if (networkSubId != subId && !hasMmsApn(networkSubId)) {
+                LogUtil.i("No MMS APN on data subId " + networkSubId + ", use subId " + subId);
+                return subId;
+            }
+            return networkSubId;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    /**
+     * @return Whether the subscription has a valid MMS APN, looked up through the APN cache
+     */
+    private boolean hasMmsApn(int subId) {
+        try {
+            ApnSettings.load(this, null /* apnName */, subId, null /* requestId */);
+            return true;
+        } catch (ApnException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The MMSC identifies the sender by the PDN the message comes from, so a group alone doesn't
+     * make the network of one subscription usable by another. Only an opportunistic subscription
+     * of the same carrier stands in for the subscription.
+     *
+     * @return The data subscription if it is an opportunistic subscription of the same carrier in
+     *         the group of the subscription, the subscription otherwise
+     */
+    @VisibleForTesting
+    public static int resolveNetworkSubId(int subId, @Nullable SubscriptionInfo subInfo,
+            int dataSubId, @Nullable SubscriptionInfo dataSubInfo) {
+        if (subInfo == null || dataSubInfo == null || subInfo.getGroupUuid() == null) {
+            return subId;
+        }
+        if (!subInfo.getGroupUuid().equals(dataSubInfo.getGroupUuid())
+                || subInfo.getCarrierId() == TelephonyManager.UNKNOWN_CARRIER_ID
+                || subInfo.getCarrierId() != dataSubInfo.getCarrierId()
+                || !dataSubInfo.isOpportunistic()) {
+            return subId;
+        }
+        return dataSubId;
+    }
+
+    private void trimNetworkManagerCacheLocked() {
+        final Iterator<Map.Entry<Integer, MmsNetworkManager>> it =
+                mNetworkManagerCache.entrySet().iterator();
+        while (mNetworkManagerCache.size() > MAX_NETWORK_MANAGERS && it.hasNext()) {
+            final Map.Entry<Integer, MmsNetworkManager> entry = it.next();
+            if (!entry.getValue().isInUse()) {
+                LogUtil.d("Evict network manager of subId " + entry.getKey());
+                entry.getValue().dispose();
+                it.remove();
+            }
+        }
+    }
+
+    private void evictInactiveNetworkManagers() {
+        final SubscriptionManager subscriptionManager =
+                getSystemService(SubscriptionManager.class);
+        final Set<Integer> activeSubIds = new ArraySet<>();
+        for (int subId : subscriptionManager.getActiveSubscriptionIdList()) {
+            activeSubIds.add(subId);
+        }
+        synchronized (mNetworkManagerCache) {
+            final Iterator<Map.Entry<Integer, MmsNetworkManager>> it =
+                    mNetworkManagerCache.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Integer, MmsNetworkManager> entry = it.next();
+                if (!activeSubIds.contains(entry.getKey()) && !entry.getValue().isInUse()) {
+                    LogUtil.d("Evict network manager of inactive subId " + entry.getKey());
+                    entry.getValue().dispose();
+                    it.remove();
+                }
+            }
+        }
+    }
+
     private TelephonyManager getTelephonyManager(int subId) {
         synchronized (mTelephonyManagerCache) {
             if (mDefaultTelephonyManager == null) {
@@ -623,12 +754,14 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         LogUtil.d("Current running=" + mRunningRequestCount + ", "
                 + "current subId=" + mCurrentSubId + ", "
                 + "pending=" + mPendingSimRequestQueue.size());
+        request.setNetworkSubId(getNetworkSubId(request.getSubId()));
 
         synchronized (this) {
             if (mPendingSimRequestQueue.size() > 0 ||
-                    (mRunningRequestCount > 0 && request.getSubId() != mCurrentSubId)) {
+                    (mRunningRequestCount > 0 && request.getNetworkSubId() != mCurrentSubId)) {
                 LogUtil.d("Add request to pending queue."
                         + " Request subId=" + request.getSubId() + ","
+                        + " network subId=" + request.getNetworkSubId() + ","
                         + " current subId=" + mCurrentSubId);
                 mPendingSimRequestQueue.add(request);
                 if (mRunningRequestCount <= 0) {
@@ -676,14 +809,17 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             return;
         }
         mRunningRequestCount++;
-        mCurrentSubId = request.getSubId();
+        mCurrentSubId = request.getNetworkSubId();
+        // Keep the network manager from being evicted while the request is queued and running
+        final MmsNetworkManager networkManager = acquireNetworkManager(request.getNetworkSubId());
         // Send to the corresponding request queue for execution
         mRunningRequestExecutors[queue].execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    request.execute(MmsService.this, getNetworkManager(request.getSubId()));
+                    request.execute(MmsService.this, networkManager);
                 } finally {
+                    networkManager.onRequestFinished();
                     synchronized (MmsService.this) {
                         mRunningRequestCount--;
                         LogUtil.d("addToRunningRequestQueueSynchronized mRunningRequestCount="
@@ -705,7 +841,7 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             final MmsRequest request = mPendingSimRequestQueue.peek();
             if (request != null) {
                 if (!SubscriptionManager.isValidSubscriptionId(mCurrentSubId)
-                        || mCurrentSubId == request.getSubId()) {
+                        || mCurrentSubId == request.getNetworkSubId()) {
                     // First or subsequent requests with same SIM ID
                     mPendingSimRequestQueue.remove();
                     LogUtil.d("Move pending request to running queue."
@@ -741,12 +877,19 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         LogUtil.d("onCreate");
         // Load mms_config
         MmsConfigManager.getInstance().init(this);
+        // Load the permanent MMSC redirects
+        MmsRedirectCache.getInstance().init(this);
+        // Watch for APN changes to drop the loaded APNs
+        MmsApnCache.getInstance().init(this);
 
         NetworkSecurityPolicy.getInstance().setCleartextTrafficPermitted(true);
 
         // Registers statsd pullers
         mMmsMetricsCollector = new MmsMetricsCollector(this);
 
+        getSystemService(SubscriptionManager.class).addOnSubscriptionsChangedListener(
+                getMainExecutor(), mSubscriptionsChangedListener);
+
         // Initialize running request state
         for (int i = 0; i < mRunningRequestExecutors.length; i++) {
             mRunningRequestExecutors[i] = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
@@ -764,6 +907,32 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         for (ExecutorService executor : mRunningRequestExecutors) {
             executor.shutdown();
         }
+        getSystemService(SubscriptionManager.class).removeOnSubscriptionsChangedListener(
+                mSubscriptionsChangedListener);
+        synchronized (mNetworkManagerCache) {
+            for (MmsNetworkManager manager : mNetworkManagerCache.values()) {
+                manager.dispose();
+            }
+            mNetworkManagerCache.clear();
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        MmsNetworkLooper.getInstance().dump(writer);
+        MmsApnCache.getInstance().dump(writer);
+        writer.println("MMS network leases:");
+        synchronized (mNetworkManagerCache) {
+            for (Map.Entry<Integer, MmsNetworkManager> entry : mNetworkManagerCache.entrySet()) {
+                writer.println("  subId=" + entry.getKey() + " "
+                        + entry.getValue().getLeasePolicy());
+            }
+            writer.println("MMS network latencies:");
+            for (Map.Entry<Integer, MmsNetworkManager> entry : mNetworkManagerCache.entrySet()) {
+                writer.println("  subId=" + entry.getKey());
+                entry.getValue().getLatencyStats().dump(writer, "    ");
+            }
+        }
     }
 
     private Uri importSms(String address, int type, String text, long timestampMillis,
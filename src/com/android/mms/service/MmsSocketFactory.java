@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Applies the {@link MmsSocketOptions} of the carrier to the sockets created by the
+ * {@link SocketFactory} of the MMS network.
+ */
+public class MmsSocketFactory extends SocketFactory {
+    private final SocketFactory mDelegate;
+    private final MmsSocketOptions mOptions;
+
+    /**
+     * Constructor
+     *
+     * @param delegate The socket factory of the MMS network
+     * @param options  The socket options to apply
+     */
+    public MmsSocketFactory(SocketFactory delegate, MmsSocketOptions options) {
+        mDelegate = delegate;
+        mOptions = options;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        // Not connected yet, so all the options take full effect
+        return tune(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return tune(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        return tune(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return tune(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+            int localPort) throws IOException {
+        return tune(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket tune(Socket socket) throws IOException {
+        return tune(socket, mOptions);
+    }
+
+    /**
+     * Apply the options to a new socket, closing it if they can't be applied.
+     */
+    private static Socket tune(Socket socket, MmsSocketOptions options) throws IOException {
+        try {
+            options.apply(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Applies the socket options to the connected socket under a TLS layer, before the handshake.
+     */
+    public static class Ssl extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+        private final MmsSocketOptions mOptions;
+
+        /**
+         * Constructor
+         *
+         * @param delegate The TLS socket factory
+         * @param options  The socket options to apply
+         */
+        public Ssl(SSLSocketFactory delegate, MmsSocketOptions options) {
+            mDelegate = delegate;
+            mOptions = options;
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            // The connected socket is closed by its owner on failure
+            mOptions.apply(socket);
+            return mDelegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return tune(mDelegate.createSocket(), mOptions);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return tune(mDelegate.createSocket(host, port), mOptions);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return tune(mDelegate.createSocket(host, port, localHost, localPort), mOptions);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return tune(mDelegate.createSocket(host, port), mOptions);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return tune(mDelegate.createSocket(address, port, localAddress, localPort), mOptions);
+        }
+    }
+}
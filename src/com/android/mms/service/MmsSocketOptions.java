@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Bundle;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket options of the MMS connections, from the MMS config of the carrier. Options that are not
+ * configured are left to the system.
+ */
+public class MmsSocketOptions {
+    private final boolean mTcpNoDelay;
+    private final boolean mKeepAlive;
+    // 0 to keep the system default
+    private final int mSendBufferSize;
+    private final int mReceiveBufferSize;
+
+    /**
+     * Constructor
+     *
+     * @param mmsConfig            The MMS config of the request
+     * @param isSatelliteTransport Whether the network is a satellite network
+     */
+    public MmsSocketOptions(Bundle mmsConfig, boolean isSatelliteTransport) {
+        mTcpNoDelay = mmsConfig.getBoolean(MmsConstants.MMS_CONFIG_SOCKET_TCP_NODELAY_BOOL, false);
+        mKeepAlive = mmsConfig.getBoolean(MmsConstants.MMS_CONFIG_SOCKET_KEEP_ALIVE_BOOL, false);
+        if (isSatelliteTransport) {
+            mSendBufferSize = mmsConfig.getInt(
+                    MmsConstants.MMS_CONFIG_SATELLITE_SOCKET_SEND_BUFFER_BYTES_INT, 0);
+            mReceiveBufferSize = mmsConfig.getInt(
+                    MmsConstants.MMS_CONFIG_SATELLITE_SOCKET_RECEIVE_BUFFER_BYTES_INT, 0);
+        } else {
+            mSendBufferSize = mmsConfig.getInt(
+                    MmsConstants.MMS_CONFIG_SOCKET_SEND_BUFFER_BYTES_INT, 0);
+            mReceiveBufferSize = mmsConfig.getInt(
+                    MmsConstants.MMS_CONFIG_SOCKET_RECEIVE_BUFFER_BYTES_INT, 0);
+        }
+    }
+
+    /**
+     * @return Whether nothing is configured, so that sockets don't need to be touched
+     */
+    public boolean isDefault() {
+        return !mTcpNoDelay && !mKeepAlive && mSendBufferSize <= 0 && mReceiveBufferSize <= 0;
+    }
+
+    /**
+     * Apply the options to a socket. The receive buffer size only drives the TCP window scale if
+     * set before connecting.
+     *
+     * @param socket The socket
+     * @throws SocketException if an option can't be set
+     */
+    public void apply(Socket socket) throws SocketException {
+        if (mTcpNoDelay) {
+            socket.setTcpNoDelay(true);
+        }
+        if (mKeepAlive) {
+            socket.setKeepAlive(true);
+        }
+        if (mSendBufferSize > 0) {
+            socket.setSendBufferSize(mSendBufferSize);
+        }
+        if (mReceiveBufferSize > 0) {
+            socket.setReceiveBufferSize(mReceiveBufferSize);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "nodelay=" + mTcpNoDelay + " keepalive=" + mKeepAlive + " sndbuf=" + mSendBufferSize
+                + " rcvbuf=" + mReceiveBufferSize;
+    }
+}
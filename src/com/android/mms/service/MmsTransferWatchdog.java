@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aborts an MMS HTTP transfer that exceeds its total deadline, or whose throughput stays below a
+ * floor for too long. Socket timeouts only catch idle connections, so the transfer is aborted
+ * from another thread by closing its connection, which makes the blocked I/O of the request fail.
+ */
+public class MmsTransferWatchdog implements AutoCloseable {
+    // How often the throughput of a transfer in progress is checked
+    @VisibleForTesting
+    public static final long STALL_CHECK_INTERVAL_MS = 5 * 1000;
+    // Largest write passed at once to the connection, so that uploads report progress
+    private static final int MAX_WRITE_SIZE = 8 * 1024;
+
+    private final String mRequestId;
+    // Runs the deadline and the stall checks, off the thread blocked in the transfer
+    private final Handler mHandler;
+    // Bytes uploaded or downloaded so far through the monitored streams
+    private final AtomicLong mTransferredBytes = new AtomicLong();
+
+    @GuardedBy("this")
+    private Runnable mAbortAction;
+    @GuardedBy("this")
+    private Runnable mDeadlineTask;
+    @GuardedBy("this")
+    private String mAbortReason;
+    @GuardedBy("this")
+    private boolean mClosed;
+
+    // Stall detection, disabled if mStallMinBytesPerSec is 0
+    @GuardedBy("this")
+    private long mStallMinBytesPerSec;
+    @GuardedBy("this")
+    private long mStallTimeoutMs;
+    @GuardedBy("this")
+    private Runnable mStallCheckTask;
+    // Whether bytes are expected to flow, as opposed to e.g. waiting for the MMSC to respond
+    @GuardedBy("this")
+    private boolean mInProgress;
+    @GuardedBy("this")
+    private long mLastCheckBytes;
+    @GuardedBy("this")
+    private long mLastCheckTimeMs;
+    // The last time the throughput was above the floor
+    @GuardedBy("this")
+    private long mLastHealthyTimeMs;
+
+    /**
+     * Constructor
+     *
+     * @param requestId The request ID for logging
+     */
+    public MmsTransferWatchdog(String requestId) {
+        this(requestId, new MmsNetworkLooper.TrackedHandler());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param requestId The request ID for logging
+     * @param handler The handler running the checks of the transfer
+     */
+    @VisibleForTesting
+    public MmsTransferWatchdog(String requestId, Handler handler) {
+        mRequestId = requestId;
+        mHandler = handler;
+    }
+
+    /**
+     * Set how to abort the transfer, e.g. by disconnecting its connection.
+     *
+     * @param abortAction The action closing the current connection of the transfer
+     */
+    public synchronized void setAbortAction(Runnable abortAction) {
+        mAbortAction = abortAction;
+    }
+
+    /**
+     * Set or move the deadline of the transfer.
+     *
+     * @param timeoutMillis The time from now after which the transfer is aborted
+     */
+    public synchronized void setDeadline(long timeoutMillis) {
+        if (mClosed) {
+            return;
+        }
+        if (mDeadlineTask != null) {
+            mHandler.removeCallbacks(mDeadlineTask);
+        }
+        mDeadlineTask = () -> abort("total deadline of " + timeoutMillis + "ms exceeded");
+        mHandler.postDelayed(mDeadlineTask, timeoutMillis);
+    }
+
+    /**
+     * Abort the transfer if its throughput stays below a floor for too long, while it is in
+     * progress.
+     *
+     * @param minBytesPerSec The throughput floor, or 0 to disable stall detection
+     * @param stallTimeoutMs How long the throughput may stay below the floor
+     */
+    public synchronized void setStallDetection(long minBytesPerSec, long stallTimeoutMs) {
+        mStallMinBytesPerSec = minBytesPerSec;
+        mStallTimeoutMs = stallTimeoutMs;
+    }
+
+    /**
+     * Start monitoring the throughput, when the body starts being uploaded or downloaded.
+     */
+    public synchronized void startProgress() {
+        if (mClosed || mInProgress || mStallMinBytesPerSec <= 0) {
+            return;
+        }
+        mInProgress = true;
+        mLastCheckBytes = mTransferredBytes.get();
+        mLastCheckTimeMs = SystemClock.elapsedRealtime();
+        mLastHealthyTimeMs = mLastCheckTimeMs;
+        mStallCheckTask = new Runnable() {
+            @Override
+            public void run() {
+                checkStall();
+                synchronized (MmsTransferWatchdog.this) {
+                    if (mStallCheckTask == this) {
+                        mHandler.postDelayed(this, STALL_CHECK_INTERVAL_MS);
+                    }
+                }
+            }
+        };
+        mHandler.postDelayed(mStallCheckTask, STALL_CHECK_INTERVAL_MS);
+    }
+
+    /**
+     * Stop monitoring the throughput, when the body has been uploaded or downloaded.
+     */
+    public synchronized void stopProgress() {
+        mInProgress = false;
+        if (mStallCheckTask != null) {
+            mHandler.removeCallbacks(mStallCheckTask);
+            mStallCheckTask = null;
+        }
+    }
+
+    /**
+     * @param in The response body stream of the connection
+     * @return A stream counting the bytes downloaded
+     */
+    public InputStream monitor(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    mTransferredBytes.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int count = super.read(b, off, len);
+                if (count > 0) {
+                    mTransferredBytes.addAndGet(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * @param out The request body stream of the connection
+     * @return A stream counting the bytes uploaded
+     */
+    public OutputStream monitor(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                mTransferredBytes.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // Split large writes, which would otherwise only complete at the very end
+                while (len > 0) {
+                    final int count = Math.min(len, MAX_WRITE_SIZE);
+                    out.write(b, off, count);
+                    mTransferredBytes.addAndGet(count);
+                    off += count;
+                    len -= count;
+                }
+            }
+        };
+    }
+
+    /**
+     * Check the throughput since the previous check, and abort the transfer if it has been below
+     * the floor for longer than the stall timeout.
+     */
+    @VisibleForTesting
+    public void checkStall() {
+        final String reason;
+        synchronized (this) {
+            if (!mInProgress) {
+                return;
+            }
+            final long now = SystemClock.elapsedRealtime();
+            final long bytes = mTransferredBytes.get();
+            final long elapsedMs = now - mLastCheckTimeMs;
+            if (elapsedMs <= 0) {
+                return;
+            }
+            final long bytesPerSec = (bytes - mLastCheckBytes) * 1000 / elapsedMs;
+            mLastCheckBytes = bytes;
+            mLastCheckTimeMs = now;
+            if (bytesPerSec >= mStallMinBytesPerSec) {
+                mLastHealthyTimeMs = now;
+                return;
+            }
+            if (now - mLastHealthyTimeMs < mStallTimeoutMs) {
+                return;
+            }
+            reason = "stalled below " + mStallMinBytesPerSec + "B/s for "
+                    + (now - mLastHealthyTimeMs) + "ms after " + bytes + " bytes";
+        }
+        abort(reason);
+    }
+
+    /**
+     * Abort the transfer now.
+     *
+     * @param reason The reason, for logging and for the resulting error
+     */
+    public void abort(String reason) {
+        final Runnable abortAction;
+        synchronized (this) {
+            if (mClosed || mAbortReason != null) {
+                return;
+            }
+            mAbortReason = reason;
+            abortAction = mAbortAction;
+        }
+        LogUtil.w(mRequestId, "HTTP: aborting transfer, " + reason);
+        if (abortAction != null) {
+            abortAction.run();
+        }
+    }
+
+    /**
+     * @return The reason the transfer was aborted, or null if it was not
+     */
+    public synchronized String getAbortReason() {
+        return mAbortReason;
+    }
+
+    /**
+     * Stop watching the transfer, once it completed or failed.
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        stopProgress();
+        if (mDeadlineTask != null) {
+            mHandler.removeCallbacks(mDeadlineTask);
+            mDeadlineTask = null;
+        }
+        mAbortAction = null;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Bundle;
+
+import com.android.mms.service.exception.MmsHttpException;
+
+/**
+ * Executes the MMS HTTP requests on one MMS network. The engine is selected per carrier with
+ * {@link MmsConstants#MMS_CONFIG_TRANSPORT_ENGINE_STRING}.
+ */
+public interface MmsTransport {
+    // HttpURLConnection based engine, see MmsHttpClient
+    String ENGINE_DEFAULT = "default";
+    // Engine using non-blocking sockets for the plain http POSTs, see NioMmsTransport
+    String ENGINE_NIO = "nio";
+
+    /**
+     * Execute an MMS HTTP request, either a POST (sending) or a GET (downloading)
+     *
+     * @param urlString  The request URL, for sending it is usually the MMSC, and for downloading
+     *                   it is the message URL
+     * @param pdu        For POST (sending) only, the PDU to send
+     * @param method     HTTP method, POST for sending and GET for downloading
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost  The proxy host
+     * @param proxyPort  The proxy port
+     * @param mmsConfig  The MMS config to use
+     * @param subId      The subscription ID used to get line number, etc.
+     * @param requestId  The request ID for logging
+     * @return The HTTP response body
+     * @throws MmsHttpException For any failures
+     */
+    default byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId)
+            throws MmsHttpException {
+        return execute(urlString, pdu, method, isProxySet, proxyHost, proxyPort, mmsConfig, subId,
+                requestId, null/*partialDownload*/);
+    }
+
+    /**
+     * Execute an MMS HTTP request, either a POST (sending) or a GET (downloading), resuming a
+     * previously interrupted download if the engine supports it
+     *
+     * @param urlString       The request URL, for sending it is usually the MMSC, and for
+     *                        downloading it is the message URL
+     * @param pdu             For POST (sending) only, the PDU to send
+     * @param method          HTTP method, POST for sending and GET for downloading
+     * @param isProxySet      Is there a proxy for the MMSC
+     * @param proxyHost       The proxy host
+     * @param proxyPort       The proxy port
+     * @param mmsConfig       The MMS config to use
+     * @param subId           The subscription ID used to get line number, etc.
+     * @param requestId       The request ID for logging
+     * @param partialDownload For GET (downloading) only, keeps the body received so far across
+     *                        attempts of the same download, or null
+     * @return The HTTP response body
+     * @throws MmsHttpException For any failures
+     */
+    byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            MmsHttpClient.PartialDownload partialDownload) throws MmsHttpException;
+
+    /**
+     * Take the time a request waited for IPv4 on the network of this transport
+     *
+     * @param requestId The request ID
+     * @return The wait time, 0 if the request did not wait
+     */
+    long takeIpv4WaitMillis(String requestId);
+}
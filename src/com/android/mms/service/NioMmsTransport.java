@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.mms.service.exception.MmsHttpException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * {@link MmsTransport} engine speaking HTTP/1.1 over a non-blocking {@link SocketChannel} bound to
+ * the MMS network, with the timeouts enforced by a {@link Selector} instead of blocking socket
+ * timeouts.
+ *
+ * Only plain http POSTs are handled. Downloads, which the default engine resumes and bounds by
+ * their size, https, moved URLs and IPv4 literal hosts to reach through NAT64 go through the
+ * default engine.
+ */
+public class NioMmsTransport implements MmsTransport {
+    private static final String PROTOCOL_HTTP = "http";
+    private static final String CRLF = "\r\n";
+    private static final int HTTP_CONTINUE = 100;
+
+    // The default engine, for the requests this one doesn't support, and for the state of the
+    // network shared by both engines.
+    private final MmsHttpClient mHttpClient;
+
+    /**
+     * Constructor
+     *
+     * @param httpClient The default engine of the same network
+     */
+    public NioMmsTransport(MmsHttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+    @Override
+    public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            MmsHttpClient.PartialDownload partialDownload) throws MmsHttpException {
+        return execute(urlString, pdu, method, isProxySet, proxyHost, proxyPort, mmsConfig, subId,
+                requestId, partialDownload, 0/*redirectCount*/);
+    }
+
+    @Override
+    public long takeIpv4WaitMillis(String requestId) {
+        return mHttpClient.takeIpv4WaitMillis(requestId);
+    }
+
+    private byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            MmsHttpClient.PartialDownload partialDownload, int redirectCount)
+            throws MmsHttpException {
+        if (!isSupported(urlString, method, isProxySet, proxyHost, mmsConfig, subId)) {
+            LogUtil.d(requestId, "HTTP: not supported by the nio engine, use the default one");
+            return mHttpClient.execute(urlString, pdu, method, isProxySet, proxyHost, proxyPort,
+                    mmsConfig, subId, requestId, partialDownload);
+        }
+        LogUtil.d(requestId, "HTTP (nio): " + method + " "
+                + MmsHttpClient.redactUrlForNonVerbose(urlString)
+                + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
+                + ", PDU size=" + (pdu != null ? pdu.length : 0));
+        if (pdu == null || pdu.length < 1) {
+            LogUtil.e(requestId, "HTTP: empty pdu");
+            throw new MmsHttpException(0/*statusCode*/, "Sending empty PDU");
+        }
+        final MmsHttpTimeouts timeouts = new MmsHttpTimeouts(mmsConfig,
+                mHttpClient.isSatelliteTransport(), mHttpClient.getMeasuredBytesPerSec());
+        final MmsTransferWatchdog watchdog = new MmsTransferWatchdog(requestId);
+        final long startMs = SystemClock.elapsedRealtime();
+        try (Selector selector = Selector.open(); SocketChannel channel = SocketChannel.open()) {
+            final URL url = new URL(urlString);
+            mHttpClient.maybeWaitForIpv4(requestId, url);
+            final InetSocketAddress address = isProxySet
+                    ? (InetSocketAddress) mHttpClient.getDnsCache()
+                            .getProxy(proxyHost, proxyPort).address()
+                    : new InetSocketAddress(resolve(url.getHost()),
+                            url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+
+            mHttpClient.getNetwork().bindSocket(channel.socket());
+            new MmsSocketOptions(mmsConfig, mHttpClient.isSatelliteTransport())
+                    .apply(channel.socket());
+            channel.configureBlocking(false);
+            watchdog.setAbortAction(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                selector.wakeup();
+            });
+            watchdog.setDeadline(timeouts.getTotalTimeoutMillis(pdu.length));
+            watchdog.setStallDetection(
+                    timeouts.getStallMinBytesPerSec(), timeouts.getStallTimeoutMillis());
+
+            if (!channel.connect(address)) {
+                do {
+                    await(channel, selector, SelectionKey.OP_CONNECT,
+                            timeouts.getConnectTimeoutMillis());
+                } while (!channel.finishConnect());
+            }
+
+            final Map<String, String> headers =
+                    mHttpClient.buildCommonHeaders(mmsConfig, subId, requestId);
+            headers.put("Content-Type", MmsHttpClient.getPostContentType(mmsConfig));
+            if (LogUtil.isLoggable(Log.VERBOSE)) {
+                LogUtil.v(requestId, "HTTP: headers " + headers);
+            }
+            final OutputStream out =
+                    new ChannelOutputStream(channel, selector, timeouts.getReadTimeoutMillis());
+            final long uploadStartMs = SystemClock.elapsedRealtime();
+            out.write(buildRequestHead(method, url, isProxySet, headers, pdu.length)
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            watchdog.startProgress();
+            watchdog.monitor(out).write(pdu);
+            // The MMSC may take a while to respond, which is not a stall.
+            watchdog.stopProgress();
+
+            await(channel, selector, SelectionKey.OP_READ, timeouts.getReadTimeoutMillis());
+            final InputStream in = new BufferedInputStream(watchdog.monitor(
+                    new ChannelInputStream(channel, selector, timeouts.getReadTimeoutMillis())));
+            HttpResponseParser.Response response;
+            do {
+                response = HttpResponseParser.readHead(in);
+            } while (response.getStatusCode() == HTTP_CONTINUE);
+
+            final int responseCode = response.getStatusCode();
+            LogUtil.d(requestId, "HTTP: " + responseCode + " " + response.getMessage());
+            if (LogUtil.isLoggable(Log.VERBOSE)) {
+                MmsHttpClient.logHttpHeaders(response.getHeaders(), requestId);
+            }
+            final MmsHttpClient.Redirect redirect = MmsHttpClient.getRedirect(requestId,
+                    responseCode, response.getHeader("location"), urlString, method, pdu, subId,
+                    redirectCount);
+            if (redirect != null) {
+                // Only the new location gets the PDU, by whichever engine supports it
+                watchdog.close();
+                channel.close();
+                return execute(redirect.mUrl, redirect.mPdu, redirect.mMethod, isProxySet,
+                        proxyHost, proxyPort, mmsConfig, subId, requestId, partialDownload,
+                        redirectCount + 1);
+            }
+            if (responseCode / 100 != 2) {
+                throw new MmsHttpException(responseCode, response.getMessage());
+            }
+            // Fail fast on a response that is not an MMS PDU, before reading its body
+            MmsHttpClient.checkContentType(
+                    requestId, responseCode, response.getHeader("content-type"));
+            // The upload is only complete once the MMSC has responded, as in the default engine
+            mHttpClient.recordThroughput(
+                    pdu.length, SystemClock.elapsedRealtime() - uploadStartMs);
+            byte[] responseBody = new byte[0];
+            if (response.hasBody()) {
+                watchdog.startProgress();
+                try {
+                    responseBody = MmsHttpClient.readPduBody(requestId, responseCode,
+                            response.getBodyStream(in), response.getContentLength());
+                } finally {
+                    watchdog.stopProgress();
+                }
+            }
+            LogUtil.d(requestId, "HTTP (nio): response size=" + responseBody.length + " in "
+                    + (SystemClock.elapsedRealtime() - startMs) + "ms");
+            return responseBody;
+        } catch (IOException e) {
+            LogUtil.e(requestId, "HTTP: IO failure", e);
+            // The cached addresses may be stale, resolve them again on retry.
+            mHttpClient.getDnsCache().clear();
+            final String abortReason = watchdog.getAbortReason();
+            if (abortReason != null) {
+                throw new MmsHttpException(0/*statusCode*/, "Transfer aborted: " + abortReason, e);
+            }
+            throw new MmsHttpException(0/*statusCode*/, e);
+        } finally {
+            watchdog.close();
+        }
+    }
+
+    private static boolean isSupported(String urlString, String method, boolean isProxySet,
+            String proxyHost, Bundle mmsConfig, int subId) {
+        if (!MmsHttpClient.METHOD_POST.equals(method)) {
+            // Downloads, and invalid methods reported by the default engine
+            return false;
+        }
+        if (MmsRedirectCache.getInstance().getRedirect(subId, urlString) != null) {
+            // The MMSC has moved, see MmsHttpClient
+            return false;
+        }
+        final URL url;
+        try {
+            url = new URL(urlString);
+        } catch (MalformedURLException e) {
+            // Reported by the default engine
+            return false;
+        }
+        if (mmsConfig.getBoolean(MmsConstants.MMS_CONFIG_NAT64_SYNTHESIS_BOOL, false)
+                && MmsHttpClient.isIpv4Literal(isProxySet ? proxyHost : url.getHost())) {
+            // Only the default engine synthesizes NAT64 addresses instead of waiting for IPv4
+            return false;
+        }
+        return PROTOCOL_HTTP.equals(url.getProtocol());
+    }
+
+    private InetAddress resolve(String host) throws IOException {
+        final InetAddress address = mHttpClient.getDnsCache().lookup(host);
+        // Numeric hosts and hosts with several addresses are not cached
+        return address != null ? address : mHttpClient.getNetwork().getByName(host);
+    }
+
+    @VisibleForTesting
+    public static String buildRequestHead(String method, URL url, boolean viaProxy,
+            Map<String, String> headers, int contentLength) {
+        final StringBuilder sb = new StringBuilder();
+        // Proxies need the absolute URL, servers the path
+        final String target = viaProxy ? url.toString() : url.getFile();
+        sb.append(method).append(' ').append(target.isEmpty() ? "/" : target).append(" HTTP/1.1")
+                .append(CRLF);
+        sb.append("Host: ").append(url.getAuthority()).append(CRLF);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            final String name = header.getKey();
+            if (name == null || header.getValue() == null || isManagedHeader(name)) {
+                continue;
+            }
+            sb.append(name).append(": ").append(header.getValue()).append(CRLF);
+        }
+        if (contentLength >= 0) {
+            sb.append("Content-Length: ").append(contentLength).append(CRLF);
+        }
+        // The channel is not reused
+        sb.append("Connection: close").append(CRLF);
+        sb.append(CRLF);
+        return sb.toString();
+    }
+
+    private static boolean isManagedHeader(String name) {
+        return "Host".equalsIgnoreCase(name)
+                || "Content-Length".equalsIgnoreCase(name)
+                || "Connection".equalsIgnoreCase(name)
+                || "Transfer-Encoding".equalsIgnoreCase(name);
+    }
+
+    /**
+     * Wait until the channel is ready for an operation.
+     *
+     * @param timeoutMs How long to wait, 0 to wait forever
+     * @throws SocketTimeoutException if the channel is not ready in time
+     * @throws IOException if the channel is closed, e.g. by the watchdog
+     */
+    private static void await(SocketChannel channel, Selector selector, int op, int timeoutMs)
+            throws IOException {
+        final SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            channel.register(selector, op);
+        } else {
+            key.interestOps(op);
+        }
+        final long deadline = timeoutMs > 0
+                ? SystemClock.elapsedRealtime() + timeoutMs : Long.MAX_VALUE;
+        while (true) {
+            if (!channel.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Timed out after " + timeoutMs + "ms");
+            }
+            if (selector.select(remaining) > 0) {
+                selector.selectedKeys().clear();
+                return;
+            }
+        }
+    }
+
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel mChannel;
+        private final Selector mSelector;
+        private final int mTimeoutMs;
+
+        ChannelInputStream(SocketChannel channel, Selector selector, int timeoutMs) {
+            mChannel = channel;
+            mSelector = selector;
+            mTimeoutMs = timeoutMs;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (true) {
+                final int count = mChannel.read(buffer);
+                if (count != 0) {
+                    return count;
+                }
+                await(mChannel, mSelector, SelectionKey.OP_READ, mTimeoutMs);
+            }
+        }
+    }
+
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel mChannel;
+        private final Selector mSelector;
+        private final int mTimeoutMs;
+
+        ChannelOutputStream(SocketChannel channel, Selector selector, int timeoutMs) {
+            mChannel = channel;
+            mSelector = selector;
+            mTimeoutMs = timeoutMs;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                if (mChannel.write(buffer) == 0) {
+                    await(mChannel, mSelector, SelectionKey.OP_WRITE, mTimeoutMs);
+                }
+            }
+        }
+    }
+}
@@ -77,8 +77,9 @@ public class SendRequest extends MmsRequest {
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn)
             throws MmsHttpException {
         final String requestId = getRequestId();
-        final MmsHttpClient mmsHttpClient = netMgr.getOrCreateHttpClient();
-        if (mmsHttpClient == null) {
+        final MmsTransport transport = netMgr.getOrCreateTransport(mMmsConfig,
+                mUseTerrestrialNetwork);
+        if (transport == null) {
             String notReady = "MMS network is not ready! "
                     + MmsService.formatCrossStackMessageId(mMessageId);
             LogUtil.e(requestId, notReady);
@@ -87,16 +88,21 @@ public class SendRequest extends MmsRequest {
         final GenericPdu parsedPdu = parsePdu();
         notifyIfEmergencyContactNoThrow(parsedPdu);
         updateDestinationAddress(parsedPdu);
-        return mmsHttpClient.execute(
-                mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
-                mPduData,
-                MmsHttpClient.METHOD_POST,
-                apn.isProxySet(),
-                apn.getProxyAddress(),
-                apn.getProxyPort(),
-                mMmsConfig,
-                mSubId,
-                requestId);
+        try {
+            return transport.execute(
+                    mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
+                    mPduData,
+                    MmsHttpClient.METHOD_POST,
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId);
+        } finally {
+            // Also when failing, so that the transport doesn't keep it
+            mNetworkTimings.addIpv4WaitMillis(transport.takeIpv4WaitMillis(requestId));
+        }
     }
 
     private GenericPdu parsePdu() {
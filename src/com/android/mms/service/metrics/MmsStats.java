@@ -40,6 +40,7 @@ import com.android.internal.telephony.flags.Flags;
 import com.android.internal.telephony.satellite.metrics.CarrierRoamingSatelliteSessionStats;
 import com.android.mms.IncomingMms;
 import com.android.mms.OutgoingMms;
+import com.android.mms.service.MmsNetworkTimings;
 
 import java.util.List;
 
@@ -54,6 +55,7 @@ public class MmsStats {
     private final long mTimestamp;
     private int mSubId;
     private TelephonyManager mTelephonyManager;
+    private MmsNetworkTimings mNetworkTimings;
 
     public MmsStats(Context context, PersistMmsAtomsStorage persistMmsAtomsStorage, int subId,
             TelephonyManager telephonyManager, String callingPkg, boolean isIncomingMms) {
@@ -72,6 +74,11 @@ public class MmsStats {
         mTelephonyManager = telephonyManager;
     }
 
+    /** Sets the network phase timings of the mms, added to the atom. */
+    public void setNetworkTimings(MmsNetworkTimings networkTimings) {
+        mNetworkTimings = networkTimings;
+    }
+
     /** Adds incoming or outgoing mms atom to storage. */
     public void addAtomToStorage(int result) {
         addAtomToStorage(result, 0, false, 0);
@@ -99,7 +106,7 @@ public class MmsStats {
 
     /** Creates a new atom when MMS is received. */
     private void onIncomingMms(int result, int retryId, boolean handledByCarrierApp) {
-        IncomingMms incomingMms = IncomingMms.newBuilder()
+        IncomingMms.Builder builder = IncomingMms.newBuilder()
                 .setRat(getDataNetworkType())
                 .setResult(getIncomingMmsResult(result))
                 .setRoaming(getDataRoamingType())
@@ -112,14 +119,20 @@ public class MmsStats {
                 .setRetryId(retryId)
                 .setHandledByCarrierApp(handledByCarrierApp)
                 .setIsManagedProfile(isManagedProfile())
-                .setIsNtn(isUsingNonTerrestrialNetwork())
-                .build();
-        mPersistMmsAtomsStorage.addIncomingMms(incomingMms);
+                .setIsNtn(isUsingNonTerrestrialNetwork());
+        if (mNetworkTimings != null) {
+            builder.setAvgNetworkAcquireMillis(mNetworkTimings.getAcquireWaitMillis())
+                    .setNetworkReuseCount(mNetworkTimings.isNetworkReused() ? 1 : 0)
+                    .setAvgNetworkSetupMillis(mNetworkTimings.getNetworkSetupMillis())
+                    .setAvgNetworkSuspendedMillis(mNetworkTimings.getSuspendedMillis())
+                    .setAvgIpv4WaitMillis(mNetworkTimings.getIpv4WaitMillis());
+        }
+        mPersistMmsAtomsStorage.addIncomingMms(builder.build());
     }
 
     /** Creates a new atom when MMS is sent. */
     private void onOutgoingMms(int result, int retryId, boolean handledByCarrierApp) {
-        OutgoingMms outgoingMms = OutgoingMms.newBuilder()
+        OutgoingMms.Builder builder = OutgoingMms.newBuilder()
                 .setRat(getDataNetworkType())
                 .setResult(getOutgoingMmsResult(result))
                 .setRoaming(getDataRoamingType())
@@ -133,9 +146,15 @@ public class MmsStats {
                 .setRetryId(retryId)
                 .setHandledByCarrierApp(handledByCarrierApp)
                 .setIsManagedProfile(isManagedProfile())
-                .setIsNtn(isUsingNonTerrestrialNetwork())
-                .build();
-        mPersistMmsAtomsStorage.addOutgoingMms(outgoingMms);
+                .setIsNtn(isUsingNonTerrestrialNetwork());
+        if (mNetworkTimings != null) {
+            builder.setAvgNetworkAcquireMillis(mNetworkTimings.getAcquireWaitMillis())
+                    .setNetworkReuseCount(mNetworkTimings.isNetworkReused() ? 1 : 0)
+                    .setAvgNetworkSetupMillis(mNetworkTimings.getNetworkSetupMillis())
+                    .setAvgNetworkSuspendedMillis(mNetworkTimings.getSuspendedMillis())
+                    .setAvgIpv4WaitMillis(mNetworkTimings.getIpv4WaitMillis());
+        }
+        mPersistMmsAtomsStorage.addOutgoingMms(builder.build());
     }
 
     /** @return {@code true} if this SIM is dedicated to work profile */
@@ -137,13 +137,29 @@ public class PersistMmsAtomsStorage {
         if (existingMmsIndex != -1) {
             // Update mmsCount and avgIntervalMillis of existingMms.
             IncomingMms existingMms = mPersistMmsAtoms.getIncomingMms(existingMmsIndex);
-            long updatedMmsCount = existingMms.getMmsCount() + 1;
+            long mmsCount = existingMms.getMmsCount();
+            long updatedMmsCount = mmsCount + 1;
             long updatedAvgIntervalMillis =
                     (((existingMms.getAvgIntervalMillis() * existingMms.getMmsCount())
                             + mms.getAvgIntervalMillis()) / updatedMmsCount);
             existingMms = existingMms.toBuilder()
                     .setMmsCount(updatedMmsCount)
                     .setAvgIntervalMillis(updatedAvgIntervalMillis)
+                    .setAvgNetworkAcquireMillis(updateAverage(
+                            existingMms.getAvgNetworkAcquireMillis(), mmsCount,
+                            mms.getAvgNetworkAcquireMillis()))
+                    .setNetworkReuseCount(
+                            existingMms.getNetworkReuseCount() + mms.getNetworkReuseCount())
+                    .setAvgNetworkSetupMillis(updateSetupAverage(
+                            existingMms.getAvgNetworkSetupMillis(),
+                            mmsCount - existingMms.getNetworkReuseCount(),
+                            mms.getAvgNetworkSetupMillis(), mms.getNetworkReuseCount()))
+                    .setAvgNetworkSuspendedMillis(updateAverage(
+                            existingMms.getAvgNetworkSuspendedMillis(), mmsCount,
+                            mms.getAvgNetworkSuspendedMillis()))
+                    .setAvgIpv4WaitMillis(updateAverage(
+                            existingMms.getAvgIpv4WaitMillis(), mmsCount,
+                            mms.getAvgIpv4WaitMillis()))
                     .build();
 
             mPersistMmsAtoms = mPersistMmsAtoms.toBuilder()
@@ -167,13 +183,29 @@ public class PersistMmsAtomsStorage {
         if (existingMmsIndex != -1) {
             // Update mmsCount and avgIntervalMillis of existingMms.
             OutgoingMms existingMms = mPersistMmsAtoms.getOutgoingMms(existingMmsIndex);
-            long updatedMmsCount = existingMms.getMmsCount() + 1;
+            long mmsCount = existingMms.getMmsCount();
+            long updatedMmsCount = mmsCount + 1;
             long updatedAvgIntervalMillis =
                     (((existingMms.getAvgIntervalMillis() * existingMms.getMmsCount())
                             + mms.getAvgIntervalMillis()) / updatedMmsCount);
             existingMms = existingMms.toBuilder()
                     .setMmsCount(updatedMmsCount)
                     .setAvgIntervalMillis(updatedAvgIntervalMillis)
+                    .setAvgNetworkAcquireMillis(updateAverage(
+                            existingMms.getAvgNetworkAcquireMillis(), mmsCount,
+                            mms.getAvgNetworkAcquireMillis()))
+                    .setNetworkReuseCount(
+                            existingMms.getNetworkReuseCount() + mms.getNetworkReuseCount())
+                    .setAvgNetworkSetupMillis(updateSetupAverage(
+                            existingMms.getAvgNetworkSetupMillis(),
+                            mmsCount - existingMms.getNetworkReuseCount(),
+                            mms.getAvgNetworkSetupMillis(), mms.getNetworkReuseCount()))
+                    .setAvgNetworkSuspendedMillis(updateAverage(
+                            existingMms.getAvgNetworkSuspendedMillis(), mmsCount,
+                            mms.getAvgNetworkSuspendedMillis()))
+                    .setAvgIpv4WaitMillis(updateAverage(
+                            existingMms.getAvgIpv4WaitMillis(), mmsCount,
+                            mms.getAvgIpv4WaitMillis()))
                     .build();
 
             mPersistMmsAtoms = mPersistMmsAtoms.toBuilder()
@@ -277,6 +309,20 @@ public class PersistMmsAtomsStorage {
         }
     }
 
+    /** Returns the average of {@code count} values updated with one more value. */
+    private static long updateAverage(long average, long count, long value) {
+        return ((average * count) + value) / (count + 1);
+    }
+
+    /**
+     * Returns the average network setup time of {@code count} MMS that requested a network,
+     * updated with one more MMS unless it reused an available network.
+     */
+    private static long updateSetupAverage(long average, long count, long value,
+            long reuseCount) {
+        return reuseCount > 0 ? average : updateAverage(average, count, value);
+    }
+
     /**
      * Inserts a new element in a random position.
      */
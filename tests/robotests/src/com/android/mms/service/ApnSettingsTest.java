@@ -54,6 +54,7 @@ public final class ApnSettingsTest {
     @Before
     public void setUp() {
         context = ApplicationProvider.getApplicationContext();
+        MmsApnCache.getInstance().invalidateAll();
     }
 
     @Test
@@ -87,7 +88,71 @@ public final class ApnSettingsTest {
         assertThat(apnSettings.getProxyPort()).isEqualTo(80);
     }
 
-    private void createApnSettingsCursor(String mmscUrl, String mmsProxy, String proxyPort) {
+    @Test
+    public void load_cachedUntilApnsChange() throws Exception {
+        FakeApnSettingsProvider provider =
+                createApnSettingsCursor("mmscUrl", "mmsProxy", /* proxyPort= */ "123");
+        ApnSettings.load(context, "apnName", /* subId= */ 0, "requestId");
+        ApnSettings apnSettings = ApnSettings.load(context, "apnName", /* subId= */ 0, "requestId");
+        assertThat(provider.queryCount).isEqualTo(1);
+        assertThat(apnSettings.getMmscUrl()).isEqualTo("mmscUrl");
+
+        MmsApnCache.getInstance().invalidate(/* subId= */ 0);
+        createApnSettingsCursor("newMmscUrl", "mmsProxy", /* proxyPort= */ "123");
+        apnSettings = ApnSettings.load(context, "apnName", /* subId= */ 0, "requestId");
+        assertThat(apnSettings.getMmscUrl()).isEqualTo("newMmscUrl");
+    }
+
+    @Test
+    public void load_noMatchCached() throws Exception {
+        FakeApnSettingsProvider provider = createApnSettingsCursor(
+                /* mmscUrl= */ null, "mmsProxy", /* proxyPort= */ "123");
+        assertThrows(ApnException.class,
+                () -> ApnSettings.load(context, "apnName", /* subId= */ 0, "requestId"));
+        assertThrows(ApnException.class,
+                () -> ApnSettings.load(context, "apnName", /* subId= */ 0, "requestId"));
+        assertThat(provider.queryCount).isEqualTo(1);
+    }
+
+    @Test
+    public void load_selectsMmsTypesOnly() throws Exception {
+        FakeApnSettingsProvider provider =
+                createApnSettingsCursor("mmscUrl", "mmsProxy", /* proxyPort= */ "123");
+        ApnSettings apnSettings = ApnSettings.load(context, "apnName", /* subId= */ 0, "requestId");
+
+        assertThat(provider.selection).contains(Telephony.Carriers.TYPE + " LIKE ?");
+        assertThat(provider.selectionArgs).asList().containsExactly("apnName", "%mms%", "%*%");
+        assertThat(apnSettings.getDebugText()).isEqualTo(
+                "APN [type=mms mmsc=mmscUrl mmsproxy=mmsProxy mmsport=123]");
+    }
+
+    @Test
+    public void put_staleGenerationIgnored() {
+        MmsApnCache cache = new MmsApnCache();
+        long generation = cache.getGeneration();
+        cache.invalidateAll();
+        cache.put(/* subId= */ 0, "apnName", MmsApnCache.NO_APN, generation);
+        assertThat(cache.get(/* subId= */ 0, "apnName")).isNull();
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+        MmsApnCache cache = new MmsApnCache();
+        long generation = cache.getGeneration();
+        for (int subId = 0; subId < MmsApnCache.MAX_ENTRIES; subId++) {
+            cache.put(subId, "apnName", MmsApnCache.NO_APN, generation);
+        }
+        // The first APN is used again, so the second one is evicted instead
+        assertThat(cache.get(/* subId= */ 0, "apnName")).isNotNull();
+        cache.put(MmsApnCache.MAX_ENTRIES, "apnName", MmsApnCache.NO_APN, generation);
+
+        assertThat(cache.get(/* subId= */ 0, "apnName")).isNotNull();
+        assertThat(cache.get(/* subId= */ 1, "apnName")).isNull();
+        assertThat(cache.get(MmsApnCache.MAX_ENTRIES, "apnName")).isNotNull();
+    }
+
+    private FakeApnSettingsProvider createApnSettingsCursor(String mmscUrl, String mmsProxy,
+            String proxyPort) {
         Object[][] apnValues =
                 {new Object[]{ApnSetting.TYPE_MMS_STRING, mmscUrl, mmsProxy, proxyPort}};
         RoboCursor cursor = new RoboCursor();
@@ -95,8 +160,10 @@ public final class ApnSettingsTest {
         cursor.setColumnNames(Arrays.asList(Telephony.Carriers.TYPE, Telephony.Carriers.MMSC,
                 Telephony.Carriers.MMSPROXY, Telephony.Carriers.MMSPORT));
 
+        FakeApnSettingsProvider provider = new FakeApnSettingsProvider(cursor);
         ShadowContentResolver.registerProviderInternal(
-                Telephony.Carriers.CONTENT_URI.getAuthority(), new FakeApnSettingsProvider(cursor));
+                Telephony.Carriers.CONTENT_URI.getAuthority(), provider);
+        return provider;
     }
 
     @Test
@@ -138,6 +205,9 @@ public final class ApnSettingsTest {
     private final class FakeApnSettingsProvider extends ContentProvider {
 
         private final Cursor cursor;
+        private int queryCount;
+        private String selection;
+        private String[] selectionArgs;
 
         FakeApnSettingsProvider(Cursor cursor) {
             this.cursor = cursor;
@@ -151,6 +221,9 @@ public final class ApnSettingsTest {
         @Override
         public Cursor query(Uri uri, String[] projection,
                 String selection, String[] selectionArgs, String sortOrder) {
+            queryCount++;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
             return cursor;
         }
 
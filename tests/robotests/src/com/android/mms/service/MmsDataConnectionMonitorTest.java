@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.telephony.DataFailCause;
+import android.telephony.PreciseDataConnectionState;
+import android.telephony.TelephonyManager;
+import android.telephony.data.ApnSetting;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public final class MmsDataConnectionMonitorTest {
+    private static final int TEST_SUBID = 1234;
+
+    @Mock Context mContext;
+    @Mock TelephonyManager mTelephonyManager;
+
+    private MmsDataConnectionMonitor mMonitor;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(mTelephonyManager).when(mContext).getSystemService(TelephonyManager.class);
+        doReturn(mTelephonyManager).when(mTelephonyManager).createForSubscriptionId(anyInt());
+        mMonitor = new MmsDataConnectionMonitor(mContext, TEST_SUBID);
+    }
+
+    @Test
+    public void start_registersOnce() {
+        mMonitor.start();
+        mMonitor.start();
+        verify(mTelephonyManager, times(1)).registerTelephonyCallback(any(), any());
+
+        mMonitor.stop();
+        mMonitor.stop();
+        verify(mTelephonyManager, times(1)).unregisterTelephonyCallback(any());
+
+        mMonitor.start();
+        verify(mTelephonyManager, times(2)).registerTelephonyCallback(any(), any());
+    }
+
+    @Test
+    public void getApn_unknownNetwork() {
+        mMonitor.start();
+        assertThat(mMonitor.getApn(100)).isNull();
+        assertThat(mMonitor.getLastCauseCode()).isEqualTo(0);
+    }
+
+    @Test
+    public void getCauseSequence_countsMmsCauses() {
+        mMonitor.start();
+        final long sequence = mMonitor.getCauseSequence();
+        mMonitor.onPreciseDataConnectionStateChanged(newState(ApnSetting.TYPE_DEFAULT));
+        assertThat(mMonitor.getCauseSequence()).isEqualTo(sequence);
+
+        mMonitor.onPreciseDataConnectionStateChanged(newState(ApnSetting.TYPE_MMS));
+        assertThat(mMonitor.getCauseSequence()).isEqualTo(sequence + 1);
+        assertThat(mMonitor.getLastCauseCode()).isEqualTo(DataFailCause.LOST_CONNECTION);
+    }
+
+    private static PreciseDataConnectionState newState(int apnTypeBitmask) {
+        final ApnSetting apn = new ApnSetting.Builder()
+                .setApnName("mms")
+                .setEntryName("mms")
+                .setApnTypeBitmask(apnTypeBitmask)
+                .build();
+        return new PreciseDataConnectionState.Builder()
+                .setApnSetting(apn)
+                .setState(TelephonyManager.DATA_DISCONNECTED)
+                .setFailCause(DataFailCause.LOST_CONNECTION)
+                .build();
+    }
+}
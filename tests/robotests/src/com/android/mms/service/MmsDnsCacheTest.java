@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Network;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+
+@RunWith(RobolectricTestRunner.class)
+public final class MmsDnsCacheTest {
+    private static final String MMSC_HOST = "mmsc.carrier.example";
+    private static final InetAddress ADDRESS = InetAddress.parseNumericAddress("10.1.2.3");
+    private static final InetAddress ADDRESS2 = InetAddress.parseNumericAddress("10.1.2.4");
+    private static final String MULTI_HOST = "multi.carrier.example";
+
+    @Mock Network mNetwork;
+
+    private TestDnsCache mDnsCache;
+
+    private final class TestDnsCache extends MmsDnsCache {
+        int mResolveCount;
+
+        TestDnsCache() {
+            super(mNetwork);
+        }
+
+        TestDnsCache(Collection<String> prewarmHosts) {
+            super(mNetwork, prewarmHosts);
+        }
+
+        @Override
+        protected InetAddress[] resolve(String host) {
+            mResolveCount++;
+            return MULTI_HOST.equals(host)
+                    ? new InetAddress[] {ADDRESS, ADDRESS2} : new InetAddress[] {ADDRESS};
+        }
+    }
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mDnsCache = new TestDnsCache();
+    }
+
+    @Test
+    public void lookup_reusesAddressUntilExpired() throws Exception {
+        assertThat(mDnsCache.lookup(MMSC_HOST)).isEqualTo(ADDRESS);
+        assertThat(mDnsCache.lookup(MMSC_HOST)).isEqualTo(ADDRESS);
+        assertThat(mDnsCache.mResolveCount).isEqualTo(1);
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(MmsDnsCache.ENTRY_LIFETIME_MS + 1));
+        assertThat(mDnsCache.lookup(MMSC_HOST)).isEqualTo(ADDRESS);
+        assertThat(mDnsCache.mResolveCount).isEqualTo(2);
+    }
+
+    @Test
+    public void lookup_numericHost_notResolved() throws Exception {
+        assertThat(mDnsCache.lookup("10.0.0.1")).isNull();
+        assertThat(mDnsCache.lookup("[2001:db8::1]")).isNull();
+        assertThat(mDnsCache.mResolveCount).isEqualTo(0);
+        assertThat(mDnsCache.getHosts()).isEmpty();
+    }
+
+    @Test
+    public void lookup_severalAddresses_leftToConnection() throws Exception {
+        assertThat(mDnsCache.lookup(MULTI_HOST)).isNull();
+        assertThat(mDnsCache.lookup(MULTI_HOST)).isNull();
+        assertThat(mDnsCache.mResolveCount).isEqualTo(1);
+        // Not worth prewarming on the next network
+        assertThat(mDnsCache.getHosts()).isEmpty();
+    }
+
+    @Test
+    public void lookup_evictsLeastRecentlyUsed() throws Exception {
+        for (int i = 0; i < MmsDnsCache.MAX_ENTRIES; i++) {
+            mDnsCache.lookup("host" + i);
+        }
+        mDnsCache.lookup("host0");
+        mDnsCache.lookup("new");
+
+        assertThat(mDnsCache.getHosts()).contains("host0");
+        assertThat(mDnsCache.getHosts()).doesNotContain("host1");
+        assertThat(mDnsCache.getHosts()).hasSize(MmsDnsCache.MAX_ENTRIES);
+    }
+
+    @Test
+    public void prewarm_resolvesPreviousHostsOnce() throws Exception {
+        mDnsCache = new TestDnsCache(Arrays.asList(MMSC_HOST, "proxy.carrier.example"));
+        mDnsCache.prewarm();
+        assertThat(mDnsCache.mResolveCount).isEqualTo(2);
+        assertThat(mDnsCache.getHosts()).containsExactly(MMSC_HOST, "proxy.carrier.example");
+
+        mDnsCache.prewarm();
+        mDnsCache.lookup(MMSC_HOST);
+        assertThat(mDnsCache.mResolveCount).isEqualTo(2);
+    }
+
+    @Test
+    public void getProxy_reusesProxy() throws Exception {
+        final Proxy proxy = mDnsCache.getProxy(MMSC_HOST, 8080);
+        assertThat(((InetSocketAddress) proxy.address()).getAddress()).isEqualTo(ADDRESS);
+        assertThat(((InetSocketAddress) proxy.address()).getPort()).isEqualTo(8080);
+        assertThat(mDnsCache.getProxy(MMSC_HOST, 8080)).isSameInstanceAs(proxy);
+    }
+
+    @Test
+    public void clear_resolvesAgain() throws Exception {
+        mDnsCache.lookup(MMSC_HOST);
+        assertThat(mDnsCache.getHosts()).containsExactly(MMSC_HOST);
+
+        mDnsCache.clear();
+        assertThat(mDnsCache.getHosts()).isEmpty();
+        mDnsCache.lookup(MMSC_HOST);
+        assertThat(mDnsCache.mResolveCount).isEqualTo(2);
+    }
+}
@@ -20,6 +20,7 @@ import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_SUSPENDED;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
 import static org.mockito.ArgumentMatchers.any;
@@ -28,17 +29,23 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
+import android.os.Handler;
 import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
 
+import com.android.mms.service.exception.MmsNetworkException;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -48,6 +55,7 @@ import org.mockito.MockitoAnnotations;
 import org.robolectric.RobolectricTestRunner;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -206,6 +214,189 @@ public final class MmsNetworkManagerTest {
         assertEquals(null, mMnm.getApnName());
     }
 
+    @Test
+    public void testAcquireNetworkAsync_completedByCallback() throws Exception {
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        final CompletableFuture<Integer> first = mMnm.acquireNetworkAsync("1");
+        final CompletableFuture<Integer> second = mMnm.acquireNetworkAsync("2");
+        verify(mCm, times(1)).requestNetwork(any(), callbackCaptor.capture(), anyInt());
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        doReturn(100).when(mTestNetwork).getNetId();
+        callbackCaptor.getValue().onCapabilitiesChanged(mTestNetwork, USABLE_NC);
+        assertEquals(100, (int) first.get(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(100, (int) second.get(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(100, (int) mMnm.acquireNetworkAsync("3").getNow(-1));
+    }
+
+    @Test
+    public void testAcquireNetworkAsync_failedByUnavailable() throws Exception {
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        final CompletableFuture<Integer> future = mMnm.acquireNetworkAsync("1");
+        verify(mCm, times(1)).requestNetwork(any(), callbackCaptor.capture(), anyInt());
+
+        callbackCaptor.getValue().onUnavailable();
+        try {
+            future.get(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Acquire network should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MmsNetworkException);
+        }
+    }
+
+    @Test
+    public void testAcquireNetworkAsync_requestedAgainForWaiters() throws Exception {
+        doReturn(60 * 1000).when(mDeps).getNetworkRequestTimeoutMillis();
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        final CompletableFuture<Integer> future = mMnm.acquireNetworkAsync("1");
+        verify(mCm, times(1)).requestNetwork(any(), callbackCaptor.capture(), anyInt());
+        final NetworkCallback firstCallback = callbackCaptor.getValue();
+
+        // The waiter still has time, so the failed request is replaced after the retry delay
+        firstCallback.onUnavailable();
+        assertFalse(future.isDone());
+        verify(mCm).unregisterNetworkCallback(eq(firstCallback));
+        verify(mCm, timeout(CALLBACK_TIMEOUT_MS).times(2))
+                .requestNetwork(any(), callbackCaptor.capture(), anyInt());
+
+        doReturn(100).when(mTestNetwork).getNetId();
+        callbackCaptor.getValue().onCapabilitiesChanged(mTestNetwork, USABLE_NC);
+        assertEquals(100, (int) future.get(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testAcquireNetworkAsync_retriesBoundedWhenUnavailableRightAway() throws Exception {
+        doReturn(60 * 1000).when(mDeps).getNetworkRequestTimeoutMillis();
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        final CompletableFuture<Integer> future = mMnm.acquireNetworkAsync("1");
+
+        // Every request is rejected right away, e.g. without MMS APN
+        for (int i = 1; i <= MmsNetworkManager.MAX_NETWORK_REQUEST_RETRIES + 1; i++) {
+            verify(mCm, timeout(CALLBACK_TIMEOUT_MS).times(i))
+                    .requestNetwork(any(), callbackCaptor.capture(), anyInt());
+            assertFalse(future.isDone());
+            callbackCaptor.getValue().onUnavailable();
+        }
+        try {
+            future.get(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Acquire network should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MmsNetworkException);
+        }
+        verify(mCm, times(MmsNetworkManager.MAX_NETWORK_REQUEST_RETRIES + 1))
+                .requestNetwork(any(), any(NetworkCallback.class), anyInt());
+    }
+
+    @Test
+    public void testAcquireTerrestrialNetwork() throws Exception {
+        final NetworkCallback callback = acquireAvailableNetworkAndGetCallback(
+                mTestNetwork /* expectNetwork */, MMS_APN /* expectApn */);
+        try {
+            mMnm.acquireTerrestrialNetwork("1");
+            fail("No satellite support");
+        } catch (MmsNetworkException expected) {
+        }
+        // The MMS network was released before waiting, the terrestrial hold is kept until
+        // released
+        verify(mCm).unregisterNetworkCallback(eq(callback));
+        assertTrue(mMnm.isInUse());
+
+        mMnm.releaseTerrestrialNetwork("1");
+        assertFalse(mMnm.isInUse());
+        // Unbalanced releases are ignored
+        mMnm.releaseTerrestrialNetwork("1");
+        assertFalse(mMnm.isInUse());
+    }
+
+    @Test
+    public void testAcquireTerrestrialNetwork_networkAvailable() throws Exception {
+        doReturn(true).when(mDeps).isSatelliteInternetEnabled();
+        doReturn(NETWORK_ACQUIRE_TIMEOUT_MS).when(mDeps)
+                .getTerrestrialNetworkRequestTimeoutMillis();
+        mMnm = new MmsNetworkManager(mCtx, TEST_SUBID, mDeps);
+        final NetworkCallback callback = acquireAvailableNetworkAndGetCallback(
+                mTestNetwork /* expectNetwork */, MMS_APN /* expectApn */);
+        doReturn(100).when(mTestNetwork2).getNetId();
+
+        final CompletableFuture<Integer> future = acquireTerrestrialNetwork("1");
+        // The satellite network is released right away, without waiting for the terrestrial one
+        verify(mCm, timeout(CALLBACK_TIMEOUT_MS)).unregisterNetworkCallback(eq(callback));
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        verify(mCm, timeout(CALLBACK_TIMEOUT_MS).times(2))
+                .requestNetwork(any(), callbackCaptor.capture(), eq(NETWORK_ACQUIRE_TIMEOUT_MS));
+        final NetworkCallback terrestrialCallback = callbackCaptor.getAllValues().get(1);
+        assertFalse(future.isDone());
+
+        terrestrialCallback.onCapabilitiesChanged(mTestNetwork2, USABLE_NC);
+        assertEquals(100, (int) future.get(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mMnm.isInUse());
+        // Another request moving to the terrestrial network gets it right away
+        assertEquals(100, mMnm.acquireTerrestrialNetwork("2"));
+
+        mMnm.releaseTerrestrialNetwork("1");
+        verify(mCm, never()).unregisterNetworkCallback(eq(terrestrialCallback));
+        mMnm.releaseTerrestrialNetwork("2");
+        verify(mCm).unregisterNetworkCallback(eq(terrestrialCallback));
+        assertFalse(mMnm.isInUse());
+    }
+
+    @Test
+    public void testAcquireTerrestrialNetwork_onlySatelliteInService() throws Exception {
+        doReturn(true).when(mDeps).isSatelliteInternetEnabled();
+        doReturn(true).when(mDeps).isUsingNonTerrestrialNetwork(any(), eq(TEST_SUBID));
+        mMnm = new MmsNetworkManager(mCtx, TEST_SUBID, mDeps);
+        acquireAvailableNetworkAndGetCallback(
+                mTestNetwork /* expectNetwork */, MMS_APN /* expectApn */);
+        try {
+            mMnm.acquireTerrestrialNetwork("1");
+            fail("No terrestrial network in service");
+        } catch (MmsNetworkException expected) {
+        }
+        // Failed right away, without requesting a terrestrial network
+        verify(mCm, times(1)).requestNetwork(any(), any(NetworkCallback.class), anyInt());
+
+        mMnm.releaseTerrestrialNetwork("1");
+        assertFalse(mMnm.isInUse());
+    }
+
+    @Test
+    public void testIsInUse_whileRequestRuns() throws Exception {
+        assertFalse(mMnm.isInUse());
+        // In use before acquiring the network and between the attempts
+        mMnm.onRequestStarted();
+        assertTrue(mMnm.isInUse());
+
+        mMnm.onRequestFinished();
+        assertFalse(mMnm.isInUse());
+        // Unbalanced calls are ignored
+        mMnm.onRequestFinished();
+        mMnm.onRequestStarted();
+        assertTrue(mMnm.isInUse());
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        final ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mCtx).registerReceiver(receiverCaptor.capture(), any(IntentFilter.class),
+                any(), any(Handler.class));
+        final NetworkCallback callback = acquireAvailableNetworkAndGetCallback(
+                mTestNetwork /* expectNetwork */, MMS_APN /* expectApn */);
+        assertTrue(mMnm.isInUse());
+
+        mMnm.dispose();
+        // The network and the carrier config receiver are released
+        verify(mCm).unregisterNetworkCallback(eq(callback));
+        verify(mCtx).unregisterReceiver(eq(receiverCaptor.getValue()));
+        assertEquals(null, mMnm.getApnName());
+    }
+
     @Test
     public void testHandleCarrierConfigChanged() throws Exception {
         // Expect receiving default NETWORK_RELEASE_TIMEOUT of 5 seconds
@@ -241,6 +432,20 @@ public final class MmsNetworkManagerTest {
         return callbackCaptor.getValue();
     }
 
+    private CompletableFuture<Integer> acquireTerrestrialNetwork(String requestId) {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        mExecutor.execute(() -> {
+            try {
+                future.complete(mMnm.acquireTerrestrialNetwork(requestId));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
     private CompletableFuture<String> acquireNetwork(String requestId) {
         final CompletableFuture<String> future = new CompletableFuture();
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public final class MmsRedirectCacheTest {
+    private static final String OLD_MMSC = "http://mmsc.carrier.example/mms";
+    private static final String NEW_MMSC = "http://mms.carrier.example/mms";
+
+    private final MmsRedirectCache mRedirectCache = new MmsRedirectCache();
+
+    @Test
+    public void getRedirect_perSubscription() {
+        mRedirectCache.putRedirect(1, OLD_MMSC, NEW_MMSC);
+        assertThat(mRedirectCache.getRedirect(1, OLD_MMSC)).isEqualTo(NEW_MMSC);
+        assertThat(mRedirectCache.getRedirect(2, OLD_MMSC)).isNull();
+        assertThat(mRedirectCache.getRedirect(1, NEW_MMSC)).isNull();
+    }
+
+    @Test
+    public void getRedirect_followsChain() {
+        final String newestMmsc = "https://mms.carrier.example/mms";
+        mRedirectCache.putRedirect(1, OLD_MMSC, NEW_MMSC);
+        mRedirectCache.putRedirect(1, NEW_MMSC, newestMmsc);
+        assertThat(mRedirectCache.getRedirect(1, OLD_MMSC)).isEqualTo(newestMmsc);
+    }
+
+    @Test
+    public void getRedirect_loopTerminates() {
+        mRedirectCache.putRedirect(1, OLD_MMSC, NEW_MMSC);
+        mRedirectCache.putRedirect(1, NEW_MMSC, OLD_MMSC);
+        assertThat(mRedirectCache.getRedirect(1, OLD_MMSC)).isNotNull();
+    }
+
+    @Test
+    public void invalidate_onlyDropsSubscription() {
+        mRedirectCache.putRedirect(1, OLD_MMSC, NEW_MMSC);
+        mRedirectCache.putRedirect(2, OLD_MMSC, NEW_MMSC);
+        mRedirectCache.invalidate(1);
+        assertThat(mRedirectCache.getRedirect(1, OLD_MMSC)).isNull();
+        assertThat(mRedirectCache.getRedirect(2, OLD_MMSC)).isEqualTo(NEW_MMSC);
+
+        mRedirectCache.invalidateAll();
+        assertThat(mRedirectCache.getRedirect(2, OLD_MMSC)).isNull();
+    }
+
+    @Test
+    public void putRedirect_bounded() {
+        for (int i = 0; i <= MmsRedirectCache.MAX_ENTRIES; i++) {
+            mRedirectCache.putRedirect(i, OLD_MMSC, NEW_MMSC);
+        }
+        int count = 0;
+        for (int i = 0; i <= MmsRedirectCache.MAX_ENTRIES; i++) {
+            if (mRedirectCache.getRedirect(i, OLD_MMSC) != null) {
+                count++;
+            }
+        }
+        assertThat(count).isEqualTo(MmsRedirectCache.MAX_ENTRIES);
+    }
+
+    @Test
+    public void putRedirect_evictsLeastRecentlyUsed() {
+        for (int i = 0; i < MmsRedirectCache.MAX_ENTRIES; i++) {
+            mRedirectCache.putRedirect(i, OLD_MMSC, NEW_MMSC);
+        }
+        // The first subscription keeps sending, the second one is evicted instead
+        assertThat(mRedirectCache.getRedirect(0, OLD_MMSC)).isEqualTo(NEW_MMSC);
+        mRedirectCache.putRedirect(MmsRedirectCache.MAX_ENTRIES, OLD_MMSC, NEW_MMSC);
+        assertThat(mRedirectCache.getRedirect(0, OLD_MMSC)).isEqualTo(NEW_MMSC);
+        assertThat(mRedirectCache.getRedirect(1, OLD_MMSC)).isNull();
+    }
+
+    @Test
+    public void getRedirect_keyedOnSchemeHostAndPath() {
+        mRedirectCache.putRedirect(1, OLD_MMSC + "?token=1", NEW_MMSC);
+        assertThat(mRedirectCache.getRedirect(1, OLD_MMSC)).isEqualTo(NEW_MMSC);
+        assertThat(mRedirectCache.getRedirect(1, OLD_MMSC + "?token=2")).isEqualTo(NEW_MMSC);
+        assertThat(mRedirectCache.getRedirect(1, "https://mmsc.carrier.example/mms")).isNull();
+        assertThat(mRedirectCache.getRedirect(1, "http://mmsc.carrier.example/other")).isNull();
+        assertThat(mRedirectCache.getRedirect(1, "http://mmsc.carrier.example:8080/mms"))
+                .isNull();
+    }
+
+    @Test
+    public void init_loadsPersistedRedirects() {
+        final Context context = ApplicationProvider.getApplicationContext();
+        mRedirectCache.init(context);
+        mRedirectCache.putRedirect(1, OLD_MMSC, NEW_MMSC);
+
+        final MmsRedirectCache reloaded = new MmsRedirectCache();
+        reloaded.init(context);
+        assertThat(reloaded.getRedirect(1, OLD_MMSC)).isEqualTo(NEW_MMSC);
+    }
+}
@@ -18,34 +18,61 @@ package com.android.mms.service;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.robolectric.Shadows.shadowOf;
 import static org.testng.Assert.assertThrows;
 
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Process;
+import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
 
 import com.android.internal.telephony.IMms;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.shadows.ShadowBinder;
+import org.robolectric.shadows.ShadowSubscriptionManager;
 
 @RunWith(RobolectricTestRunner.class)
 public final class MmsServiceRoboTest {
     private IMms.Stub binder;
+    private MmsService mMmsService;
     private static final int CALLING_USER = 10;
+    private static final int SUB_ID = 1;
+    private static final int DATA_SUB_ID = 2;
+    private static final int CARRIER_ID = 1435;
+    private static final int OTHER_CARRIER_ID = 1187;
+    private static final long EXECUTE_TIMEOUT_MS = 1000;
 
     @Before
     public void setUp() {
-        MmsService mmsService = Robolectric.setupService(MmsService.class);
+        mMmsService = Robolectric.setupService(MmsService.class);
 
         final Intent intent = new Intent();
 
-        binder = (IMms.Stub) mmsService.onBind(intent);
+        binder = (IMms.Stub) mMmsService.onBind(intent);
+    }
+
+    @After
+    public void tearDown() {
+        MmsApnCache.getInstance().invalidateAll();
     }
 
     @Test
@@ -70,4 +97,119 @@ public final class MmsServiceRoboTest {
                         "locationUrl", /* configOverrides= */ null, /* sentIntent= */ null,
                         /* messageId= */ 0L, /* attributionTag= */ null));
     }
+
+    @Test
+    public void testResolveNetworkSubId_sharedWithinGroup() {
+        final ParcelUuid group = ParcelUuid.fromString("c2e3b6d4-30d5-4d7a-a7c8-a0e5b0a5f8a1");
+        final SubscriptionInfo primary = newSubscriptionInfo(group, CARRIER_ID, false);
+        final SubscriptionInfo opportunistic = newSubscriptionInfo(group, CARRIER_ID, true);
+        final SubscriptionInfo other = newSubscriptionInfo(
+                ParcelUuid.fromString("5a6f5ad4-9f4e-4d2a-8e34-3f6f1d1b2c3d"), CARRIER_ID, true);
+
+        // The grouped subscription uses the network of the opportunistic data subscription
+        assertThat(MmsService.resolveNetworkSubId(1, primary, 2, opportunistic)).isEqualTo(2);
+        assertThat(MmsService.resolveNetworkSubId(1, primary, 3, other)).isEqualTo(1);
+        assertThat(MmsService.resolveNetworkSubId(1, newSubscriptionInfo(null, CARRIER_ID, false),
+                2, opportunistic)).isEqualTo(1);
+        assertThat(MmsService.resolveNetworkSubId(1, null, 2, opportunistic)).isEqualTo(1);
+    }
+
+    @Test
+    public void testResolveNetworkSubId_notSharedWithOtherCarrierOrPrimary() {
+        final ParcelUuid group = ParcelUuid.fromString("c2e3b6d4-30d5-4d7a-a7c8-a0e5b0a5f8a1");
+        final SubscriptionInfo primary = newSubscriptionInfo(group, CARRIER_ID, false);
+
+        // Another carrier may have another MMSC and identify the sender by its own PDN
+        assertThat(MmsService.resolveNetworkSubId(1, primary, 2,
+                newSubscriptionInfo(group, OTHER_CARRIER_ID, true))).isEqualTo(1);
+        // Nor do two primary subscriptions of a group share their networks
+        assertThat(MmsService.resolveNetworkSubId(1, primary, 2,
+                newSubscriptionInfo(group, CARRIER_ID, false))).isEqualTo(1);
+        assertThat(MmsService.resolveNetworkSubId(1,
+                newSubscriptionInfo(group, TelephonyManager.UNKNOWN_CARRIER_ID, false), 2,
+                newSubscriptionInfo(group, TelephonyManager.UNKNOWN_CARRIER_ID, true)))
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void testAddSimRequest_routedToDataSubscriptionWithMmsApn() {
+        setUpGroupedDataSubscription();
+        final MmsApnCache apnCache = MmsApnCache.getInstance();
+        apnCache.put(DATA_SUB_ID, null, new ApnSettings("http://mmsc", null, 0, "data"),
+                apnCache.getGeneration());
+
+        final MmsRequest request = newRequest();
+        mMmsService.addSimRequest(request);
+
+        assertThat(request.getNetworkSubId()).isEqualTo(DATA_SUB_ID);
+        verify(request, timeout(EXECUTE_TIMEOUT_MS)).execute(eq(mMmsService),
+                argThat(networkManager -> networkManager.getSubId() == DATA_SUB_ID));
+    }
+
+    @Test
+    public void testAddSimRequest_notRoutedToDataSubscriptionWithoutMmsApn() {
+        setUpGroupedDataSubscription();
+        final MmsApnCache apnCache = MmsApnCache.getInstance();
+        apnCache.put(DATA_SUB_ID, null, MmsApnCache.NO_APN, apnCache.getGeneration());
+
+        final MmsRequest request = newRequest();
+        mMmsService.addSimRequest(request);
+
+        // The request keeps its own subscription, whose APN it loads
+        assertThat(request.getNetworkSubId()).isEqualTo(SUB_ID);
+        verify(request, timeout(EXECUTE_TIMEOUT_MS)).execute(eq(mMmsService),
+                argThat(networkManager -> networkManager.getSubId() == SUB_ID));
+    }
+
+    @Test
+    public void testAddSimRequest_sendNotRoutedToOtherCarrier() {
+        setUpGroupedDataSubscription(OTHER_CARRIER_ID);
+        final MmsApnCache apnCache = MmsApnCache.getInstance();
+        apnCache.put(DATA_SUB_ID, null, new ApnSettings("http://mmsc", null, 0, "data"),
+                apnCache.getGeneration());
+
+        // A message sent from the subscription goes out on its own network and MMSC
+        final MmsRequest request = newRequest();
+        mMmsService.addSimRequest(request);
+
+        assertThat(request.getNetworkSubId()).isEqualTo(SUB_ID);
+        verify(request, timeout(EXECUTE_TIMEOUT_MS)).execute(eq(mMmsService),
+                argThat(networkManager -> networkManager.getSubId() == SUB_ID));
+    }
+
+    private void setUpGroupedDataSubscription() {
+        setUpGroupedDataSubscription(CARRIER_ID);
+    }
+
+    private void setUpGroupedDataSubscription(int dataCarrierId) {
+        final ParcelUuid group = ParcelUuid.fromString("c2e3b6d4-30d5-4d7a-a7c8-a0e5b0a5f8a1");
+        ShadowSubscriptionManager.setActiveDataSubscriptionId(DATA_SUB_ID);
+        shadowOf(mMmsService.getSystemService(SubscriptionManager.class))
+                .setActiveSubscriptionInfos(newSubscriptionInfo(SUB_ID, group, CARRIER_ID, false),
+                        newSubscriptionInfo(DATA_SUB_ID, group, dataCarrierId, true));
+    }
+
+    private static MmsRequest newRequest() {
+        final MmsRequest request = mock(MmsRequest.class, CALLS_REAL_METHODS);
+        doReturn(SUB_ID).when(request).getSubId();
+        doReturn(0).when(request).getQueueType();
+        doNothing().when(request).execute(any(), any());
+        return request;
+    }
+
+    private static SubscriptionInfo newSubscriptionInfo(int subId, ParcelUuid group,
+            int carrierId, boolean opportunistic) {
+        final SubscriptionInfo info = newSubscriptionInfo(group, carrierId, opportunistic);
+        doReturn(subId).when(info).getSubscriptionId();
+        return info;
+    }
+
+    private static SubscriptionInfo newSubscriptionInfo(ParcelUuid group, int carrierId,
+            boolean opportunistic) {
+        final SubscriptionInfo info = mock(SubscriptionInfo.class);
+        doReturn(group).when(info).getGroupUuid();
+        doReturn(carrierId).when(info).getCarrierId();
+        doReturn(opportunistic).when(info).isOpportunistic();
+        return info;
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+
+@RunWith(RobolectricTestRunner.class)
+public final class MmsTransferWatchdogTest {
+    private static final long MIN_BYTES_PER_SEC = 100;
+    private static final long STALL_TIMEOUT_MS = 10 * 1000;
+
+    private MmsTransferWatchdog mWatchdog;
+    private int mAbortCount;
+
+    @Before
+    public void setUp() {
+        // The checks are run by the test, the main looper is not idled
+        mWatchdog = new MmsTransferWatchdog("test", new Handler(Looper.getMainLooper()));
+        mWatchdog.setAbortAction(() -> mAbortCount++);
+        mWatchdog.setStallDetection(MIN_BYTES_PER_SEC, STALL_TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mWatchdog.close();
+    }
+
+    @Test
+    public void checkStall_slowTransfer_abortedAfterTimeout() throws Exception {
+        final InputStream in = mWatchdog.monitor(new ByteArrayInputStream(new byte[1024]));
+        mWatchdog.startProgress();
+
+        // A trickle, well below the floor
+        in.read();
+        advanceAndCheck(STALL_TIMEOUT_MS / 2);
+        assertThat(mAbortCount).isEqualTo(0);
+
+        in.read();
+        advanceAndCheck(STALL_TIMEOUT_MS / 2);
+        assertThat(mAbortCount).isEqualTo(1);
+        assertThat(mWatchdog.getAbortReason()).contains("stalled");
+
+        // Only aborted once
+        advanceAndCheck(STALL_TIMEOUT_MS);
+        assertThat(mAbortCount).isEqualTo(1);
+    }
+
+    @Test
+    public void checkStall_progressAboveFloor_notAborted() throws Exception {
+        final OutputStream out = mWatchdog.monitor(new ByteArrayOutputStream());
+        mWatchdog.startProgress();
+
+        for (int i = 0; i < 5; i++) {
+            out.write(new byte[(int) (MIN_BYTES_PER_SEC * STALL_TIMEOUT_MS / 1000)]);
+            advanceAndCheck(STALL_TIMEOUT_MS);
+        }
+        assertThat(mAbortCount).isEqualTo(0);
+        assertThat(mWatchdog.getAbortReason()).isNull();
+    }
+
+    @Test
+    public void checkStall_notInProgress_notAborted() {
+        // E.g. waiting for the MMSC to respond
+        mWatchdog.startProgress();
+        mWatchdog.stopProgress();
+        advanceAndCheck(2 * STALL_TIMEOUT_MS);
+        assertThat(mAbortCount).isEqualTo(0);
+    }
+
+    private void advanceAndCheck(long millis) {
+        ShadowSystemClock.advanceBy(Duration.ofMillis(millis));
+        mWatchdog.checkStall();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class HttpResponseParserTest {
+    @Test
+    public void readResponse_continueThenFinal() throws Exception {
+        InputStream in = stream("HTTP/1.1 100 Continue\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Type: application/vnd.wap.mms-message\r\n"
+                + "Content-Length: 5\r\n\r\nhello");
+
+        HttpResponseParser.Response response = HttpResponseParser.readResponse(in, null);
+        assertThat(response.getStatusCode()).isEqualTo(100);
+        assertThat(response.getBody()).isEmpty();
+
+        response = HttpResponseParser.readResponse(in, null);
+        assertThat(response.getStatusCode()).isEqualTo(200);
+        assertThat(response.getMessage()).isEqualTo("OK");
+        assertThat(response.getHeaders().get("content-type"))
+                .containsExactly("application/vnd.wap.mms-message");
+        assertThat(new String(response.getBody(), StandardCharsets.ISO_8859_1))
+                .isEqualTo("hello");
+    }
+
+    @Test
+    public void readResponse_rejectedWithoutBody() throws Exception {
+        HttpResponseParser.Response response = HttpResponseParser.readResponse(
+                stream("HTTP/1.1 413 Payload Too Large\r\nContent-Length: 0\r\n\r\n"), null);
+        assertThat(response.getStatusCode()).isEqualTo(413);
+        assertThat(response.getMessage()).isEqualTo("Payload Too Large");
+        assertThat(response.getBody()).isEmpty();
+    }
+
+    @Test
+    public void readResponse_chunkedBody() throws Exception {
+        HttpResponseParser.Response response = HttpResponseParser.readResponse(
+                stream("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "5;ext=1\r\nhello\r\n7\r\n, world\r\n0\r\nTrailer: x\r\n\r\n"), null);
+        assertThat(new String(response.getBody(), StandardCharsets.ISO_8859_1))
+                .isEqualTo("hello, world");
+    }
+
+    @Test
+    public void readResponse_bodyUntilEof() throws Exception {
+        HttpResponseParser.Response response = HttpResponseParser.readResponse(
+                stream("HTTP/1.0 200 OK\r\n\r\nhello"), null);
+        assertThat(new String(response.getBody(), StandardCharsets.ISO_8859_1))
+                .isEqualTo("hello");
+    }
+
+    @Test
+    public void readResponse_invalid() {
+        assertThrows(IOException.class,
+                () -> HttpResponseParser.readResponse(stream("garbage\r\n\r\n"), null));
+        assertThrows(IOException.class,
+                () -> HttpResponseParser.readResponse(stream("HTTP/1.1 200 OK\r\n"), null));
+    }
+
+    @Test
+    public void readResponse_invalidContentLength() {
+        assertThrows(IOException.class, () -> HttpResponseParser.readResponse(
+                stream("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\nhello"), null));
+        // Not allocated up front, the body is truncated
+        assertThrows(IOException.class, () -> HttpResponseParser.readResponse(
+                stream("HTTP/1.1 200 OK\r\nContent-Length: 2000000000\r\n\r\nhello"), null));
+        assertThrows(IOException.class, () -> HttpResponseParser.readResponse(
+                stream("HTTP/1.1 200 OK\r\nContent-Length: 99999999999\r\n\r\nhello"), null));
+    }
+
+    @Test
+    public void readHead_leavesBody() throws Exception {
+        InputStream in = stream("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+
+        HttpResponseParser.Response response = HttpResponseParser.readHead(in);
+        assertThat(response.hasBody()).isTrue();
+        assertThat(response.getContentLength()).isEqualTo(5);
+        assertThat(new String(MmsHttpClient.readBody(response.getBodyStream(in), 5),
+                StandardCharsets.ISO_8859_1)).isEqualTo("hello");
+    }
+
+    @Test
+    public void readHead_chunkedBody() throws Exception {
+        InputStream in = stream("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+
+        HttpResponseParser.Response response = HttpResponseParser.readHead(in);
+        // The chunks take precedence over Content-Length
+        assertThat(response.getContentLength()).isEqualTo(-1);
+        assertThat(new String(MmsHttpClient.readUntilEof(response.getBodyStream(in)),
+                StandardCharsets.ISO_8859_1)).isEqualTo("hello");
+    }
+
+    @Test
+    public void hasBody() throws Exception {
+        assertThat(HttpResponseParser.readHead(stream("HTTP/1.1 100 Continue\r\n\r\n"))
+                .hasBody()).isFalse();
+        assertThat(HttpResponseParser.readHead(stream("HTTP/1.1 204 No Content\r\n\r\n"))
+                .hasBody()).isFalse();
+        assertThat(HttpResponseParser.readHead(stream("HTTP/1.1 404 Not Found\r\n\r\n"))
+                .hasBody()).isTrue();
+    }
+
+    private static InputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -18,6 +18,8 @@ package com.android.mms.service;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -28,17 +30,36 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.IpPrefix;
+import android.net.Network;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 
 import androidx.test.core.app.ApplicationProvider;
 
+import com.android.mms.service.exception.MmsHttpException;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
 public class MmsHttpClientTest {
     // Mocked classes
     private Context mContext;
@@ -138,4 +159,177 @@ public class MmsHttpClientTest {
         assertThat(phoneNo).contains(subscriberPhoneNumber);
         verify(mSubscriptionManager).getPhoneNumber(subId);
     }
+
+    @Test
+    public void synthesizeNat64Address() throws Exception {
+        Inet4Address ipv4 = (Inet4Address) InetAddress.parseNumericAddress("192.0.2.33");
+
+        /* Examples from RFC 6052 section 2.4 */
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("64:ff9b::/96"), ipv4))
+                .isEqualTo(InetAddress.parseNumericAddress("64:ff9b::192.0.2.33"));
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("2001:db8::/32"), ipv4))
+                .isEqualTo(InetAddress.parseNumericAddress("2001:db8:c000:221::"));
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("2001:db8:100::/40"), ipv4))
+                .isEqualTo(InetAddress.parseNumericAddress("2001:db8:1c0:2:21::"));
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("2001:db8:122::/48"), ipv4))
+                .isEqualTo(InetAddress.parseNumericAddress("2001:db8:122:c000:2:2100::"));
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("2001:db8:122:300::/56"),
+                ipv4)).isEqualTo(InetAddress.parseNumericAddress("2001:db8:122:3c0:0:221::"));
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("2001:db8:122:344::/64"),
+                ipv4)).isEqualTo(InetAddress.parseNumericAddress("2001:db8:122:344:c0:2:2100:0"));
+
+        /* Invalid prefix lengths */
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("2001:db8::/80"), ipv4))
+                .isNull();
+        assertThat(MmsHttpClient.synthesizeNat64Address(new IpPrefix("2001:db8::/44"), ipv4))
+                .isNull();
+    }
+
+    @Test
+    public void readFully() throws Exception {
+        byte[] data = createData(10000);
+        assertThat(MmsHttpClient.readFully(trickle(data), data.length)).isEqualTo(data);
+        assertThat(MmsHttpClient.readFully(trickle(new byte[0]), 0)).isEmpty();
+
+        /* when the stream ends before Content-Length */
+        assertThrows(IOException.class,
+                () -> MmsHttpClient.readFully(trickle(data), data.length + 1));
+    }
+
+    @Test
+    public void readUntilEof() throws Exception {
+        for (int size : new int[] {0, 1, 4096, 4097, 12288, 300000}) {
+            byte[] data = createData(size);
+            assertThat(MmsHttpClient.readUntilEof(trickle(data))).isEqualTo(data);
+        }
+    }
+
+    @Test
+    public void isExpectedContentRange() {
+        assertThat(MmsHttpClient.isExpectedContentRange("bytes 100-999/1000", 100, 1000))
+                .isTrue();
+        assertThat(MmsHttpClient.isExpectedContentRange("bytes 100-999/*", 100, 1000)).isTrue();
+
+        assertThat(MmsHttpClient.isExpectedContentRange(null, 100, 1000)).isFalse();
+        assertThat(MmsHttpClient.isExpectedContentRange("bytes 0-999/1000", 100, 1000))
+                .isFalse();
+        assertThat(MmsHttpClient.isExpectedContentRange("bytes 100-499/1000", 100, 1000))
+                .isFalse();
+        assertThat(MmsHttpClient.isExpectedContentRange("bytes 100-999/2000", 100, 1000))
+                .isFalse();
+        assertThat(MmsHttpClient.isExpectedContentRange("bytes */1000", 100, 1000)).isFalse();
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    // Returns at most 1000 bytes per read, like a slow network would.
+    private static InputStream trickle(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+    }
+
+    @Test
+    public void testIsNonPduContentType() {
+        assertThat(MmsHttpClient.isNonPduContentType("application/vnd.wap.mms-message")).isFalse();
+        assertThat(MmsHttpClient.isNonPduContentType("application/octet-stream")).isFalse();
+        assertThat(MmsHttpClient.isNonPduContentType(null)).isFalse();
+        assertThat(MmsHttpClient.isNonPduContentType("text/html; charset=utf-8")).isTrue();
+        assertThat(MmsHttpClient.isNonPduContentType("Text/Plain")).isTrue();
+        assertThat(MmsHttpClient.isNonPduContentType("application/xhtml+xml")).isTrue();
+    }
+
+    @Test
+    public void testIsPduStart() {
+        // X-Mms-Message-Type: m-send-conf
+        assertThat(MmsHttpClient.isPduStart(new byte[] {(byte) 0x8c, (byte) 0x81}, 2)).isTrue();
+        // Empty body
+        assertThat(MmsHttpClient.isPduStart(new byte[0], 0)).isTrue();
+        // "<h"
+        assertThat(MmsHttpClient.isPduStart(new byte[] {'<', 'h'}, 2)).isFalse();
+        assertThat(MmsHttpClient.isPduStart(new byte[] {(byte) 0x8c, 0x10}, 2)).isFalse();
+        assertThat(MmsHttpClient.isPduStart(new byte[] {(byte) 0x8c}, 1)).isFalse();
+    }
+
+    @Test
+    public void testGetRedirect() throws Exception {
+        final int redirectSubId = 42;
+        final MmsRedirectCache redirectCache = MmsRedirectCache.getInstance();
+        try {
+            // The MMSC the sends are posted to has moved
+            MmsHttpClient.Redirect redirect = MmsHttpClient.getRedirect("test", 301,
+                    "http://new.example/mms", "http://old.example/mms", "POST", new byte[1],
+                    redirectSubId, 0);
+            assertThat(redirect.mUrl).isEqualTo("http://new.example/mms");
+            assertThat(redirect.mMethod).isEqualTo("POST");
+            assertThat(redirectCache.getRedirect(redirectSubId, "http://old.example/mms"))
+                    .isEqualTo("http://new.example/mms");
+
+            // A download URL is not requested again, its redirect is not remembered
+            redirect = MmsHttpClient.getRedirect("test", 308, "/moved",
+                    "http://old.example/message", "GET", null, redirectSubId, 0);
+            assertThat(redirect.mUrl).isEqualTo("http://old.example/moved");
+            assertThat(redirectCache.getRedirect(redirectSubId, "http://old.example/message"))
+                    .isNull();
+
+            // Never between http and https
+            assertThat(MmsHttpClient.getRedirect("test", 301, "http://new.example/mms",
+                    "https://old.example/mms", "GET", null, redirectSubId, 0)).isNull();
+            assertThat(MmsHttpClient.getRedirect("test", 200, "http://new.example/mms",
+                    "http://old.example/mms", "GET", null, redirectSubId, 0)).isNull();
+        } finally {
+            redirectCache.invalidate(redirectSubId);
+        }
+    }
+
+    @Test
+    public void testIsRedirectTargetFailure() {
+        assertThat(MmsHttpClient.isRedirectTargetFailure(new MmsHttpException(404))).isTrue();
+        assertThat(MmsHttpClient.isRedirectTargetFailure(
+                new MmsHttpException(0, new UnknownHostException()))).isTrue();
+        assertThat(MmsHttpClient.isRedirectTargetFailure(new MmsHttpException(503))).isFalse();
+        assertThat(MmsHttpClient.isRedirectTargetFailure(
+                new MmsHttpException(0, new SocketTimeoutException()))).isFalse();
+    }
+
+    @Test
+    public void execute_post_recordsUploadThroughput() throws Exception {
+        final Network network = mock(Network.class);
+        final HttpURLConnection connection = mock(HttpURLConnection.class);
+        when(network.getPrivateDnsBypassingCopy()).thenReturn(network);
+        when(network.openConnection(any(URL.class), any(Proxy.class))).thenReturn(connection);
+        // An upload of 64KB that takes at least 500ms, and an immediate response
+        final byte[] pdu = createData(64 * 1024);
+        final long uploadMs = 500;
+        when(connection.getOutputStream()).thenReturn(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                SystemClock.sleep(uploadMs * len / pdu.length);
+            }
+        });
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(connection.getContentLengthLong()).thenReturn(0L);
+        when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        final MmsHttpClient client = new MmsHttpClient(mContext, network,
+                mock(ConnectivityManager.class), null, false);
+
+        client.execute("http://192.0.2.1/mms", pdu, MmsHttpClient.METHOD_POST,
+                false, null, 0, new Bundle(), subId, "test", null);
+
+        assertThat(client.getMeasuredBytesPerSec()).isGreaterThan(0L);
+        assertThat(client.getMeasuredBytesPerSec()).isAtMost(pdu.length * 1000L / uploadMs);
+    }
 }
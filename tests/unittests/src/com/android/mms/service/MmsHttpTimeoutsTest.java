@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MmsHttpTimeoutsTest {
+    private static final int SOCKET_TIMEOUT_MS = 60 * 1000;
+
+    private Bundle mMmsConfig;
+
+    @Before
+    public void setUp() {
+        mMmsConfig = new Bundle();
+        mMmsConfig.putInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT, SOCKET_TIMEOUT_MS);
+    }
+
+    @Test
+    public void terrestrial_connectTimeoutShorterThanReadTimeout() {
+        MmsHttpTimeouts timeouts = new MmsHttpTimeouts(mMmsConfig, false, 0);
+        assertThat(timeouts.getConnectTimeoutMillis()).isLessThan(SOCKET_TIMEOUT_MS);
+        assertThat(timeouts.getReadTimeoutMillis()).isEqualTo(SOCKET_TIMEOUT_MS);
+    }
+
+    @Test
+    public void satellite_longerTimeouts() {
+        MmsHttpTimeouts terrestrial = new MmsHttpTimeouts(mMmsConfig, false, 0);
+        MmsHttpTimeouts satellite = new MmsHttpTimeouts(mMmsConfig, true, 0);
+        assertThat(satellite.getConnectTimeoutMillis())
+                .isGreaterThan(terrestrial.getConnectTimeoutMillis());
+        assertThat(satellite.getReadTimeoutMillis())
+                .isGreaterThan(terrestrial.getReadTimeoutMillis());
+        assertThat(satellite.getTotalTimeoutMillis(100 * 1024))
+                .isGreaterThan(terrestrial.getTotalTimeoutMillis(100 * 1024));
+    }
+
+    @Test
+    public void totalTimeout_scalesWithPayloadAndThroughput() {
+        MmsHttpTimeouts slow = new MmsHttpTimeouts(mMmsConfig, false, 10 * 1024);
+        MmsHttpTimeouts fast = new MmsHttpTimeouts(mMmsConfig, false, 1000 * 1024);
+        assertThat(slow.getTotalTimeoutMillis(1024 * 1024))
+                .isGreaterThan(slow.getTotalTimeoutMillis(10 * 1024));
+        assertThat(fast.getTotalTimeoutMillis(1024 * 1024))
+                .isLessThan(slow.getTotalTimeoutMillis(1024 * 1024));
+        // Never less than connecting and waiting for the response
+        assertThat(fast.getTotalTimeoutMillis(0)).isEqualTo(
+                fast.getConnectTimeoutMillis() + fast.getReadTimeoutMillis());
+    }
+
+    @Test
+    public void totalTimeout_capped() {
+        MmsHttpTimeouts timeouts = new MmsHttpTimeouts(mMmsConfig, true, 1);
+        assertThat(timeouts.getTotalTimeoutMillis(Integer.MAX_VALUE))
+                .isEqualTo(MmsHttpTimeouts.MAX_TOTAL_TIMEOUT_MS);
+    }
+
+    @Test
+    public void maxTotalTimeout_unknownSize() {
+        MmsHttpTimeouts timeouts = new MmsHttpTimeouts(mMmsConfig, false, 0);
+        assertThat(timeouts.getMaxTotalTimeoutMillis())
+                .isEqualTo(MmsHttpTimeouts.MAX_TOTAL_TIMEOUT_MS);
+        assertThat(timeouts.getMaxTotalTimeoutMillis())
+                .isGreaterThan(timeouts.getTotalTimeoutMillis(0));
+    }
+
+    @Test
+    public void stallDetection_offUnlessConfigured() {
+        assertThat(new MmsHttpTimeouts(mMmsConfig, false, 0).getStallMinBytesPerSec())
+                .isEqualTo(0);
+        assertThat(new MmsHttpTimeouts(mMmsConfig, true, 0).getStallMinBytesPerSec())
+                .isEqualTo(0);
+
+        mMmsConfig.putInt(MmsConstants.MMS_CONFIG_STALL_MIN_BYTES_PER_SEC_INT, 256);
+        assertThat(new MmsHttpTimeouts(mMmsConfig, false, 0).getStallMinBytesPerSec())
+                .isEqualTo(256);
+        // Satellite links are allowed to be slower
+        assertThat(new MmsHttpTimeouts(mMmsConfig, true, 0).getStallMinBytesPerSec())
+                .isLessThan(256);
+    }
+}
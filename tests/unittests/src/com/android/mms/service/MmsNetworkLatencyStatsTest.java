@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+
+public class MmsNetworkLatencyStatsTest {
+    private final MmsNetworkLatencyStats mStats = new MmsNetworkLatencyStats();
+
+    private static MmsNetworkTimings newTimings(boolean reused, long waitMillis,
+            long setupMillis) {
+        final MmsNetworkTimings timings = new MmsNetworkTimings();
+        timings.onAcquireStarted(0);
+        timings.setNetworkReused(reused);
+        timings.onAcquireFinished(waitMillis, setupMillis);
+        timings.onReleased(0);
+        return timings;
+    }
+
+    @Test
+    public void timings_sumAttempts() {
+        final MmsNetworkTimings timings = new MmsNetworkTimings();
+        timings.onAcquireStarted(100);
+        timings.setNetworkReused(false);
+        timings.onAcquireFinished(500, 400);
+        timings.addIpv4WaitMillis(50);
+        timings.onReleased(300);
+
+        // Second attempt on the kept network
+        timings.onAcquireStarted(300);
+        timings.setNetworkReused(true);
+        timings.onAcquireFinished(10, 400);
+        timings.addIpv4WaitMillis(0);
+        timings.onReleased(350);
+
+        assertThat(timings.getAcquireWaitMillis()).isEqualTo(510);
+        assertThat(timings.isNetworkReused()).isTrue();
+        assertThat(timings.getNetworkSetupMillis()).isEqualTo(0);
+        assertThat(timings.getSuspendedMillis()).isEqualTo(250);
+        assertThat(timings.getIpv4WaitMillis()).isEqualTo(50);
+    }
+
+    @Test
+    public void record_perRat() {
+        mStats.record(TelephonyManager.NETWORK_TYPE_LTE, newTimings(false, 1000, 800));
+        mStats.record(TelephonyManager.NETWORK_TYPE_LTE, newTimings(true, 5, 800));
+        mStats.record(TelephonyManager.NETWORK_TYPE_LTE, newTimings(false, 1200, 600));
+        mStats.record(TelephonyManager.NETWORK_TYPE_NR, newTimings(false, 300, 200));
+
+        assertThat(mStats.getRequestCount(TelephonyManager.NETWORK_TYPE_LTE)).isEqualTo(3);
+        // The reused network has no setup time
+        assertThat(mStats.getAvgNetworkSetupMillis(TelephonyManager.NETWORK_TYPE_LTE))
+                .isEqualTo(700);
+        assertThat(mStats.getRequestCount(TelephonyManager.NETWORK_TYPE_NR)).isEqualTo(1);
+        assertThat(mStats.getAvgNetworkSetupMillis(TelephonyManager.NETWORK_TYPE_NR))
+                .isEqualTo(200);
+        assertThat(mStats.getRequestCount(TelephonyManager.NETWORK_TYPE_UMTS)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class MmsNetworkLeasePolicyTest {
+    private final MmsNetworkLeasePolicy mPolicy = new MmsNetworkLeasePolicy();
+    private long mNowMillis = 1000;
+
+    private long idleThenBusy(long gapMillis, boolean networkKept) {
+        final long holdMillis = mPolicy.onIdle(mNowMillis, 0);
+        mNowMillis += gapMillis;
+        mPolicy.onBusy(mNowMillis, networkKept);
+        return holdMillis;
+    }
+
+    @Test
+    public void onIdle_usesMinHoldUntilLearned() {
+        for (int i = 0; i < MmsNetworkLeasePolicy.MIN_SAMPLES - 1; i++) {
+            assertThat(idleThenBusy(2000, false)).isEqualTo(0);
+        }
+        assertThat(mPolicy.onIdle(mNowMillis, 5000)).isEqualTo(5000);
+    }
+
+    @Test
+    public void onIdle_holdsForShortGaps() {
+        for (int i = 0; i < MmsNetworkLeasePolicy.MAX_SAMPLES; i++) {
+            idleThenBusy(3000, false);
+        }
+        final long holdMillis = mPolicy.onIdle(mNowMillis, 0);
+        assertThat(holdMillis).isAtLeast(3000);
+        assertThat(holdMillis).isLessThan(MmsNetworkLeasePolicy.SETUP_COST_MILLIS);
+    }
+
+    @Test
+    public void onIdle_releasesForLongGaps() {
+        for (int i = 0; i < MmsNetworkLeasePolicy.MAX_SAMPLES; i++) {
+            idleThenBusy(MmsNetworkLeasePolicy.SETUP_COST_MILLIS * 3, false);
+        }
+        assertThat(mPolicy.onIdle(mNowMillis, 0)).isEqualTo(0);
+        assertThat(mPolicy.onIdle(mNowMillis, 5000)).isEqualTo(5000);
+    }
+
+    @Test
+    public void getHitRate() {
+        assertThat(mPolicy.getHitRate()).isEqualTo(0f);
+        idleThenBusy(1000, true);
+        idleThenBusy(1000, true);
+        idleThenBusy(1000, true);
+        idleThenBusy(1000, false);
+        // Too long to be worth holding, not a miss
+        idleThenBusy(MmsNetworkLeasePolicy.MAX_HOLD_MILLIS + 1, false);
+        assertThat(mPolicy.getHitCount()).isEqualTo(3);
+        assertThat(mPolicy.getMissCount()).isEqualTo(1);
+        assertThat(mPolicy.getHitRate()).isEqualTo(0.75f);
+    }
+
+    @Test
+    public void onBusy_ignoredWithoutIdle() {
+        mPolicy.onBusy(mNowMillis, true);
+        assertThat(mPolicy.getHitCount()).isEqualTo(0);
+    }
+}
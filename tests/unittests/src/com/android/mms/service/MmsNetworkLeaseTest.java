@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MmsNetworkLeaseTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 10000;
+
+    private final MmsNetworkLease mLease = new MmsNetworkLease();
+
+    @Test
+    public void lifecycle() {
+        assertThat(mLease.acquire()).isEqualTo(MmsNetworkLease.STATE_IDLE);
+        assertThat(mLease.acquire()).isEqualTo(MmsNetworkLease.STATE_REQUESTING);
+        mLease.onAvailable();
+        assertThat(mLease.getState()).isEqualTo(MmsNetworkLease.STATE_AVAILABLE);
+        assertThat(mLease.getHolderCount()).isEqualTo(2);
+
+        assertThat(mLease.release()).isEqualTo(-1);
+        assertThat(mLease.release()).isEqualTo(MmsNetworkLease.STATE_DRAINING);
+        // Taken back before the release task runs
+        assertThat(mLease.acquire()).isEqualTo(MmsNetworkLease.STATE_DRAINING);
+        assertThat(mLease.finishDraining()).isFalse();
+        assertThat(mLease.release()).isEqualTo(MmsNetworkLease.STATE_DRAINING);
+        assertThat(mLease.finishDraining()).isTrue();
+        assertThat(mLease.getState()).isEqualTo(MmsNetworkLease.STATE_IDLE);
+
+        // Unbalanced release
+        assertThat(mLease.release()).isEqualTo(-1);
+        assertThat(mLease.getHolderCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void release_beforeAvailable() {
+        mLease.acquire();
+        assertThat(mLease.release()).isEqualTo(MmsNetworkLease.STATE_IDLE);
+        mLease.onAvailable();
+        assertThat(mLease.getState()).isEqualTo(MmsNetworkLease.STATE_IDLE);
+    }
+
+    @Test
+    public void onRequestReleased_keepsHolders() {
+        mLease.acquire();
+        mLease.acquire();
+        mLease.onRequestReleased();
+        assertThat(mLease.getState()).isEqualTo(MmsNetworkLease.STATE_IDLE);
+        assertThat(mLease.getHolderCount()).isEqualTo(2);
+        mLease.onRequesting();
+        assertThat(mLease.getState()).isEqualTo(MmsNetworkLease.STATE_REQUESTING);
+        mLease.onAvailable();
+        mLease.onLost();
+        assertThat(mLease.getState()).isEqualTo(MmsNetworkLease.STATE_REQUESTING);
+    }
+
+    @Test
+    public void concurrentAcquireRelease_balanced() throws Exception {
+        mLease.acquire();
+        mLease.onAvailable();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                barrier.await();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    // Held by the test, so the network stays available
+                    assertThat(mLease.acquire()).isEqualTo(MmsNetworkLease.STATE_AVAILABLE);
+                    assertThat(mLease.release()).isEqualTo(-1);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(mLease.getHolderCount()).isEqualTo(1);
+        assertThat(mLease.release()).isEqualTo(MmsNetworkLease.STATE_DRAINING);
+        assertThat(mLease.finishDraining()).isTrue();
+    }
+
+    @Test
+    public void concurrentAcquireAndFinishDraining_exactlyOneWins() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < ITERATIONS; i++) {
+                final MmsNetworkLease lease = new MmsNetworkLease();
+                lease.acquire();
+                lease.onAvailable();
+                lease.release();
+                final CyclicBarrier barrier = new CyclicBarrier(2);
+                final Future<Integer> acquire = executor.submit(() -> {
+                    barrier.await();
+                    return lease.acquire();
+                });
+                final Future<Boolean> finish = executor.submit(() -> {
+                    barrier.await();
+                    return lease.finishDraining();
+                });
+
+                if (finish.get()) {
+                    // Released first, the new holder has to request the network again
+                    assertThat(acquire.get()).isEqualTo(MmsNetworkLease.STATE_IDLE);
+                    assertThat(lease.getState()).isEqualTo(MmsNetworkLease.STATE_REQUESTING);
+                } else {
+                    // Taken back, the network is kept
+                    assertThat(acquire.get()).isEqualTo(MmsNetworkLease.STATE_DRAINING);
+                    assertThat(lease.getState()).isEqualTo(MmsNetworkLease.STATE_AVAILABLE);
+                }
+                assertThat(lease.getHolderCount()).isEqualTo(1);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentLastRelease_singleDrain() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int i = 0; i < ITERATIONS / 10; i++) {
+                final MmsNetworkLease lease = new MmsNetworkLease();
+                for (int t = 0; t < THREADS; t++) {
+                    lease.acquire();
+                }
+                lease.onAvailable();
+                final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+                final List<Future<Integer>> releases = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    releases.add(executor.submit(() -> {
+                        barrier.await();
+                        return lease.release();
+                    }));
+                }
+                int drains = 0;
+                for (Future<Integer> release : releases) {
+                    if (release.get() == MmsNetworkLease.STATE_DRAINING) {
+                        drains++;
+                    }
+                }
+                assertThat(drains).isEqualTo(1);
+                assertThat(lease.getHolderCount()).isEqualTo(0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+public class MmsSocketOptionsTest {
+    @Test
+    public void isDefault_whenNotConfigured() {
+        assertThat(new MmsSocketOptions(new Bundle(), false).isDefault()).isTrue();
+        assertThat(new MmsSocketOptions(new Bundle(), true).isDefault()).isTrue();
+    }
+
+    @Test
+    public void apply_perTransportBuffers() throws Exception {
+        final Bundle mmsConfig = new Bundle();
+        mmsConfig.putBoolean(MmsConstants.MMS_CONFIG_SOCKET_TCP_NODELAY_BOOL, true);
+        mmsConfig.putBoolean(MmsConstants.MMS_CONFIG_SOCKET_KEEP_ALIVE_BOOL, true);
+        mmsConfig.putInt(MmsConstants.MMS_CONFIG_SATELLITE_SOCKET_SEND_BUFFER_BYTES_INT,
+                128 * 1024);
+
+        final MmsSocketOptions terrestrial = new MmsSocketOptions(mmsConfig, false);
+        final MmsSocketOptions satellite = new MmsSocketOptions(mmsConfig, true);
+        assertThat(terrestrial.isDefault()).isFalse();
+
+        try (Socket socket = new Socket()) {
+            final int defaultSendBufferSize = socket.getSendBufferSize();
+            terrestrial.apply(socket);
+            assertThat(socket.getTcpNoDelay()).isTrue();
+            assertThat(socket.getKeepAlive()).isTrue();
+            assertThat(socket.getSendBufferSize()).isEqualTo(defaultSendBufferSize);
+        }
+        try (Socket socket = new Socket()) {
+            satellite.apply(socket);
+            // The kernel may round the size up
+            assertThat(socket.getSendBufferSize()).isAtLeast(128 * 1024);
+        }
+    }
+
+    @Test
+    public void sslSocketFactory_closesSocketWhenOptionsFail() throws Exception {
+        final Bundle mmsConfig = new Bundle();
+        mmsConfig.putBoolean(MmsConstants.MMS_CONFIG_SOCKET_TCP_NODELAY_BOOL, true);
+        final boolean[] closed = new boolean[1];
+        final Socket socket = new Socket() {
+            @Override
+            public void setTcpNoDelay(boolean on) throws SocketException {
+                throw new SocketException("Not supported");
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        final SSLSocketFactory delegate = mock(SSLSocketFactory.class);
+        when(delegate.createSocket()).thenReturn(socket);
+
+        assertThrows(SocketException.class, () -> new MmsSocketFactory.Ssl(
+                delegate, new MmsSocketOptions(mmsConfig, false)).createSocket());
+        assertThat(closed[0]).isTrue();
+    }
+}
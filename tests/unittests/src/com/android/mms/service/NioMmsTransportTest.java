@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.ArrayMap;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Map;
+
+public class NioMmsTransportTest {
+    @Test
+    public void buildRequestHead_post() throws Exception {
+        final Map<String, String> headers = new ArrayMap<>();
+        headers.put("Accept", "*/*");
+        headers.put("Connection", "keep-alive");
+
+        final String head = NioMmsTransport.buildRequestHead("POST",
+                new URL("http://mmsc.carrier.example:8080/mms?x=1"), false, headers, 42);
+
+        assertThat(head).startsWith("POST /mms?x=1 HTTP/1.1\r\n");
+        assertThat(head).contains("\r\nHost: mmsc.carrier.example:8080\r\n");
+        assertThat(head).contains("\r\nAccept: */*\r\n");
+        assertThat(head).contains("\r\nContent-Length: 42\r\n");
+        // Managed by the engine
+        assertThat(head).doesNotContain("keep-alive");
+        assertThat(head).endsWith("\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    public void buildRequestHead_getViaProxy() throws Exception {
+        final String head = NioMmsTransport.buildRequestHead("GET",
+                new URL("http://mmsc.carrier.example/message"), true, new ArrayMap<>(), -1);
+
+        assertThat(head).startsWith("GET http://mmsc.carrier.example/message HTTP/1.1\r\n");
+        assertThat(head).doesNotContain("Content-Length");
+    }
+}
@@ -269,6 +269,31 @@ public class PersistMmsAtomsStorageTest {
                 mTestablePersistMmsAtomsStorage.getIncomingMms(0L));
     }
 
+    @Test
+    public void addIncomingMms_averagesSetupOverRequestedNetworks() throws Exception {
+        createEmptyTestFile();
+
+        mTestablePersistMmsAtomsStorage = new TestablePersistMmsAtomsStorage(mContext);
+        mTestablePersistMmsAtomsStorage.addIncomingMms(mIncomingMms1Proto.toBuilder()
+                .setAvgNetworkAcquireMillis(1000L)
+                .setAvgNetworkSetupMillis(1000L)
+                .build());
+        // A reused network has no setup, and doesn't count in the setup average
+        mTestablePersistMmsAtomsStorage.addIncomingMms(mIncomingMms1Proto.toBuilder()
+                .setNetworkReuseCount(1)
+                .build());
+        mTestablePersistMmsAtomsStorage.addIncomingMms(mIncomingMms1Proto.toBuilder()
+                .setAvgNetworkAcquireMillis(2000L)
+                .setAvgNetworkSetupMillis(2000L)
+                .build());
+
+        IncomingMms mms = mTestablePersistMmsAtomsStorage.getIncomingMms(0L).get(0);
+        assertEquals(3, mms.getMmsCount());
+        assertEquals(1, mms.getNetworkReuseCount());
+        assertEquals(1000L, mms.getAvgNetworkAcquireMillis());
+        assertEquals(1500L, mms.getAvgNetworkSetupMillis());
+    }
+
     @Test
     public void addIncomingMms_tooManyEntries() throws Exception {
         createEmptyTestFile();